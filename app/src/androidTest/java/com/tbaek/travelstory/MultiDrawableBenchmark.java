@@ -0,0 +1,140 @@
+package com.tbaek.travelstory;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-draw cost of the composited MultiDrawable against the previous clip and scale version.
+ * Timings and allocation counts are written to logcat under the "MultiDrawableBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MultiDrawableBenchmark {
+    private static final String TAG = "MultiDrawableBenchmark";
+    private static final int SIZE = 180;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 5000;
+
+    private final List<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+    private Bitmap mTarget;
+    private Canvas mCanvas;
+
+    @Before
+    public void setUp() throws Exception {
+        int[] colors = { Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW };
+        for (int color : colors) {
+            // sources at full photo size, as the old renderer received them
+            Bitmap bitmap = Bitmap.createBitmap(1024, 768, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(color);
+            mBitmaps.add(bitmap);
+        }
+        mTarget = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mTarget);
+    }
+
+    @Test
+    public void drawFourTiles() throws Exception {
+        List<Drawable> drawables = new ArrayList<Drawable>();
+        for (Bitmap bitmap : mBitmaps) {
+            Drawable drawable = new BitmapDrawable(
+                    InstrumentationRegistry.getTargetContext().getResources(), bitmap);
+            drawable.setBounds(0, 0, SIZE, SIZE);
+            drawables.add(drawable);
+        }
+        LegacyMultiDrawable legacy = new LegacyMultiDrawable(drawables);
+        legacy.setBounds(0, 0, SIZE, SIZE);
+
+        MultiDrawable mosaic = new MultiDrawable(SIZE, 2, 2);
+        mosaic.setBounds(0, 0, SIZE, SIZE);
+        mosaic.setImages(mBitmaps);
+
+        Log.i(TAG, "legacy:    " + measure(legacy));
+        Log.i(TAG, "composite: " + measure(mosaic));
+    }
+
+    private String measure(Drawable drawable) {
+        for (int i = 0; i < WARMUP; i++) {
+            drawable.draw(mCanvas);
+        }
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            drawable.draw(mCanvas);
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        Debug.resetThreadAllocCount();
+        return (elapsed / ITERATIONS) + " ns/draw, " + allocations + " allocations";
+    }
+
+    // The clip and scale implementation the composited mosaic replaced
+    private static class LegacyMultiDrawable extends Drawable {
+        private final List<Drawable> mDrawables;
+
+        LegacyMultiDrawable(List<Drawable> drawables) {
+            mDrawables = drawables;
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            int width = getBounds().width();
+            int height = getBounds().height();
+
+            canvas.save();
+            canvas.clipRect(0, 0, width, height);
+
+            // Paint top right
+            canvas.save();
+            canvas.scale(.5f, .5f);
+            canvas.translate(width, 0);
+            mDrawables.get(1).draw(canvas);
+
+            // Paint bottom right
+            canvas.translate(0, height);
+            mDrawables.get(2).draw(canvas);
+            canvas.restore();
+
+            // Paint top left
+            canvas.save();
+            canvas.scale(.5f, .5f);
+            mDrawables.get(0).draw(canvas);
+
+            // Paint bottom left
+            canvas.translate(0, height);
+            mDrawables.get(3).draw(canvas);
+            canvas.restore();
+
+            canvas.restore();
+        }
+
+        @Override
+        public void setAlpha(int i) {
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+}
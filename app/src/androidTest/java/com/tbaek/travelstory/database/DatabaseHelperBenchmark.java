@@ -0,0 +1,93 @@
+package com.tbaek.travelstory.database;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the per-row addEntry() path against the batched addEntries() path.
+ * Timings are written to logcat under the "DatabaseBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperBenchmark {
+    private static final String TAG = "DatabaseBenchmark";
+    private static final String DATABASE_NAME = "travel_story_benchmark_db";
+
+    private Context mContext;
+    private DatabaseHelper mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.clearAllImages();
+        mDb.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void insert1k() throws Exception {
+        compare(1000);
+    }
+
+    @Test
+    public void insert10k() throws Exception {
+        compare(10000);
+    }
+
+    private void compare(int rows) {
+        List<ImageRecord> records = createRecords(rows);
+
+        long start = SystemClock.elapsedRealtime();
+        for (ImageRecord record : records) {
+            mDb.addEntry(record.id, record.place, record.latitude, record.longitude,
+                    record.image, record.thumbnail);
+        }
+        long perRow = SystemClock.elapsedRealtime() - start;
+        mDb.clearAllImages();
+
+        records = createRecords(rows);
+        start = SystemClock.elapsedRealtime();
+        long[] rowIds = mDb.addEntries(records, DatabaseHelper.DEFAULT_BATCH_SIZE, null);
+        long batched = SystemClock.elapsedRealtime() - start;
+
+        for (long rowId : rowIds) {
+            assertNotEquals(-1, rowId);
+        }
+        Log.i(TAG, rows + " rows: addEntry " + perRow + " ms, addEntries " + batched + " ms");
+    }
+
+    private static List<ImageRecord> createRecords(int rows) {
+        Random random = new Random(rows);
+        byte[] image = new byte[16 * 1024];
+        byte[] thumbnail = new byte[4 * 1024];
+        random.nextBytes(image);
+        random.nextBytes(thumbnail);
+        List<ImageRecord> records = new ArrayList<ImageRecord>(rows);
+        for (int i = 0; i < rows; i++) {
+            records.add(new ImageRecord(UUID.randomUUID().toString(), "Place " + i,
+                    random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180,
+                    image, thumbnail));
+        }
+        return records;
+    }
+}
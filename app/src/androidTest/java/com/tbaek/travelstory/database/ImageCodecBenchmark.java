@@ -0,0 +1,111 @@
+package com.tbaek.travelstory.database;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.tbaek.travelstory.R;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encode time, decode time and stored size of every codec on a fixed corpus: the bundled
+ * photo at its own size and scaled to a 1024px and a 512px long side.
+ * Results are written to logcat under the "CodecBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImageCodecBenchmark {
+    private static final String TAG = "CodecBenchmark";
+    private static final int ITERATIONS = 10;
+    private static final int[] SIZES = { 0, 1024, 512 };
+
+    private final List<Bitmap> mCorpus = new ArrayList<Bitmap>();
+    private byte[] mOriginal;
+
+    @Before
+    public void setUp() throws Exception {
+        Resources resources = InstrumentationRegistry.getTargetContext().getResources();
+        mOriginal = readAll(resources.openRawResource(R.drawable.walter));
+        Bitmap photo = DatabaseUtil.getImage(mOriginal);
+        for (int size : SIZES) {
+            if (size == 0) {
+                mCorpus.add(photo);
+                continue;
+            }
+            float scale = (float) size / Math.max(photo.getWidth(), photo.getHeight());
+            mCorpus.add(Bitmap.createScaledBitmap(photo, Math.round(photo.getWidth() * scale),
+                    Math.round(photo.getHeight() * scale), true));
+        }
+    }
+
+    @Test
+    public void compareCodecs() throws Exception {
+        ImageCodec[] codecs = {
+                ImageCodec.png(),
+                ImageCodec.jpeg(75, 0),
+                ImageCodec.jpeg(90, 0),
+                ImageCodec.webp(75, 0),
+                ImageCodec.webp(90, 0),
+        };
+        for (Bitmap bitmap : mCorpus) {
+            String corpus = bitmap.getWidth() + "x" + bitmap.getHeight();
+            for (ImageCodec codec : codecs) {
+                byte[] encoded = null;
+                long start = SystemClock.elapsedRealtimeNanos();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    encoded = DatabaseUtil.getBytes(bitmap, codec);
+                }
+                long encode = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+                long decode = measureDecode(encoded);
+                Log.i(TAG, corpus + " " + codec + ": " + encoded.length + " bytes, encode " +
+                        encode / 1000 + " us, decode " + decode / 1000 + " us");
+            }
+        }
+        // the picked file as it is, nothing to encode
+        Log.i(TAG, "original " + ImageCodec.original() + ": " + mOriginal.length +
+                " bytes, encode 0 us, decode " + measureDecode(mOriginal) / 1000 + " us");
+    }
+
+    @Test
+    public void byteBudget_isRespected() throws Exception {
+        Bitmap bitmap = mCorpus.get(0);
+        int unbounded = DatabaseUtil.getBytes(bitmap, ImageCodec.jpeg(95, 0)).length;
+        byte[] bounded = DatabaseUtil.getBytes(bitmap, ImageCodec.jpeg(95, unbounded / 2));
+        assertTrue(bounded.length < unbounded);
+    }
+
+    private static long measureDecode(byte[] data) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(BitmapFactory.decodeByteArray(data, 0, data.length));
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS;
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
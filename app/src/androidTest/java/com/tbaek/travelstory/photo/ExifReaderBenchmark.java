@@ -0,0 +1,96 @@
+package com.tbaek.travelstory.photo;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.media.ExifInterface;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.tbaek.travelstory.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * EXIF parsing throughput against a full decode of the same photo. The bundled photo is
+ * copied and geotagged once, then read over and over through a content style Uri.
+ * Results are written to logcat under the "ExifBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExifReaderBenchmark {
+    private static final String TAG = "ExifBenchmark";
+    private static final int PHOTOS = 1000;
+    private static final int DECODES = 20;
+
+    private Context mContext;
+    private File mPhoto;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mPhoto = new File(mContext.getCacheDir(), "exif_benchmark.jpg");
+        InputStream in = mContext.getResources().openRawResource(R.drawable.walter);
+        OutputStream out = new FileOutputStream(mPhoto);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        ExifInterface exif = new ExifInterface(mPhoto.getAbsolutePath());
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE, "48/1,51/1,29/1");
+        exif.setAttribute(ExifInterface.TAG_GPS_LATITUDE_REF, "N");
+        exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE, "2/1,17/1,40/1");
+        exif.setAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF, "E");
+        exif.setAttribute(ExifInterface.TAG_DATETIME_ORIGINAL, "2017:05:14 09:30:05");
+        exif.saveAttributes();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPhoto.delete();
+    }
+
+    @Test
+    public void parseThroughput() throws Exception {
+        ExifReader reader = new ExifReader(mContext.getContentResolver());
+        Uri uri = Uri.fromFile(mPhoto);
+
+        ExifReader.Metadata metadata = reader.read(uri);
+        assertTrue(metadata.hasLocation());
+        assertEquals(48.858, metadata.latitude, 0.001);
+        assertNotNull(metadata.dateTaken);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < PHOTOS; i++) {
+            reader.read(uri);
+        }
+        long exif = (SystemClock.elapsedRealtimeNanos() - start) / PHOTOS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < DECODES; i++) {
+            assertNotNull(BitmapFactory.decodeFile(mPhoto.getAbsolutePath()));
+        }
+        long decode = (SystemClock.elapsedRealtimeNanos() - start) / DECODES;
+
+        Log.i(TAG, "EXIF header: " + exif / 1000 + " us/photo (" +
+                (1000000000L / Math.max(1, exif)) + " photos/s), full decode: " +
+                decode / 1000 + " us/photo");
+    }
+}
@@ -0,0 +1,165 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.tbaek.travelstory.database.DatabaseHelper;
+import com.tbaek.travelstory.database.DatabaseUtil;
+import com.tbaek.travelstory.metrics.Metrics;
+import com.tbaek.travelstory.metrics.Timer;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thumbnails keyed by image id, bounded by the number of bytes the decoded bitmaps occupy.
+ *
+ * Images only hold their id and position. A thumbnail the renderer asks for with
+ * {@link #getOrLoad(String)} and that is not cached yet is read and decoded on a background
+ * thread; the renderer draws a placeholder meanwhile and is told once the thumbnail is in.
+ */
+public class BitmapCache extends LruCache<String, Bitmap> {
+    private static final String TAG = "BitmapCache";
+
+    // Share of the app's memory class the thumbnails may take up
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+
+    private static final Timer QUERY_TIMER = Metrics.timer("db.thumbnail");
+    private static final Timer DECODE_TIMER = Metrics.timer("decode.thumbnail.miss");
+
+    private final DatabaseHelper mDb;
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Ids queued for loading, a miss asked for again while queued is not queued twice
+    private final Set<String> mPending = new HashSet<String>();
+    private OnLoadedListener mOnLoadedListener;
+
+    public interface OnLoadedListener {
+        // called on the main thread after a thumbnail has been put into the cache
+        void onThumbnailLoaded(String id);
+    }
+
+    public BitmapCache(int maxBytes, DatabaseHelper db) {
+        super(maxBytes);
+        mDb = db;
+    }
+
+    public void setOnLoadedListener(OnLoadedListener listener) {
+        mOnLoadedListener = listener;
+    }
+
+    /**
+     * The cached thumbnail, or null while it is being loaded in the background. Only a
+     * thumbnail that was found is reported to the listener, so a row without one is not
+     * asked for again and again.
+     */
+    public Bitmap getOrLoad(final String id) {
+        Bitmap cached = get(id);
+        if (cached != null) return cached;
+        synchronized (mPending) {
+            if (!mPending.add(id)) return null;
+        }
+        try {
+            mLoader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(id);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down, nothing is drawn anymore
+        }
+        return null;
+    }
+
+    private void load(final String id) {
+        Bitmap bitmap = null;
+        try {
+            bitmap = read(id);
+        } catch (RuntimeException e) {
+            // The database is closed underneath us when the activity goes away
+            Log.w(TAG, "Could not load thumbnail " + id, e);
+        }
+        if (bitmap != null) {
+            put(id, bitmap);
+        }
+        synchronized (mPending) {
+            mPending.remove(id);
+        }
+        if (bitmap == null) return;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOnLoadedListener != null) {
+                    mOnLoadedListener.onThumbnailLoaded(id);
+                }
+            }
+        });
+    }
+
+    private Bitmap read(String id) {
+        long start = QUERY_TIMER.start();
+        byte[] thumbnail;
+        try {
+            thumbnail = mDb.getThumbnail(id);
+        } finally {
+            QUERY_TIMER.stop(start);
+        }
+        if (thumbnail == null) return null;
+        start = DECODE_TIMER.start();
+        try {
+            return DatabaseUtil.getImage(thumbnail);
+        } finally {
+            DECODE_TIMER.stop(start);
+        }
+    }
+
+    // Drops the queued loads, loads that already run finish without telling anyone
+    public void shutdown() {
+        mLoader.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    public static int getDefaultSize(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+    }
+
+    @Override
+    protected int sizeOf(String id, Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxSize() / 2);
+        }
+    }
+}
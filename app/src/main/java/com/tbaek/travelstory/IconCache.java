@@ -0,0 +1,135 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.tbaek.travelstory.metrics.Counter;
+import com.tbaek.travelstory.metrics.Metrics;
+
+import java.util.Arrays;
+
+/**
+ * Rendered marker icons, so panning and zooming reuse them instead of drawing new bitmaps.
+ *
+ * Single images are keyed by their id, clusters by the ids of the images shown in the mosaic
+ * plus the count label. Entries are weighed by the byte count of the icon bitmap.
+ */
+public class IconCache {
+    private static final String ITEM_PREFIX = "i:";
+    private static final String CLUSTER_PREFIX = "c:";
+    private static final char SEPARATOR = ',';
+    private static final char LABEL_SEPARATOR = '|';
+
+    private static final Counter HITS = Metrics.counter("icon.cache.hit");
+    private static final Counter MISSES = Metrics.counter("icon.cache.miss");
+
+    private final LruCache<String, Entry> mCache;
+
+    public IconCache(int maxBytes) {
+        mCache = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.bytes;
+            }
+        };
+    }
+
+    public static String itemKey(String id) {
+        return ITEM_PREFIX + id;
+    }
+
+    // ids are sorted, the same members always produce the same key
+    public static String clusterKey(String[] ids, String label) {
+        String[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        StringBuilder key = new StringBuilder(CLUSTER_PREFIX);
+        for (String id : sorted) {
+            key.append(id).append(SEPARATOR);
+        }
+        return key.append(LABEL_SEPARATOR).append(label).toString();
+    }
+
+    public BitmapDescriptor get(String key) {
+        Entry entry = mCache.get(key);
+        if (entry == null) {
+            MISSES.increment();
+            return null;
+        }
+        HITS.increment();
+        return entry.descriptor;
+    }
+
+    // the icon as drawn, for the startup snapshot; does not count as a hit or a miss
+    public Bitmap getBitmap(String key) {
+        Entry entry = mCache.get(key);
+        return entry != null ? entry.icon : null;
+    }
+
+    // bytes of the cached icon bitmaps
+    public int size() {
+        return mCache.size();
+    }
+
+    public BitmapDescriptor put(String key, Bitmap icon) {
+        BitmapDescriptor descriptor = BitmapDescriptorFactory.fromBitmap(icon);
+        mCache.put(key, new Entry(descriptor, icon));
+        return descriptor;
+    }
+
+    // drops the icon of the image and of every cluster that shows it
+    public void invalidate(String id) {
+        mCache.remove(itemKey(id));
+        String member = id + SEPARATOR;
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(CLUSTER_PREFIX) && containsMember(key, member)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    private static boolean containsMember(String key, String member) {
+        int end = key.lastIndexOf(LABEL_SEPARATOR);
+        int index = key.indexOf(member, CLUSTER_PREFIX.length());
+        while (index != -1 && index < end) {
+            // a match has to start right after the prefix or after a separator
+            if (index == CLUSTER_PREFIX.length() || key.charAt(index - 1) == SEPARATOR) {
+                return true;
+            }
+            index = key.indexOf(member, index + 1);
+        }
+        return false;
+    }
+
+    private static class Entry {
+        final BitmapDescriptor descriptor;
+        final Bitmap icon;
+        final int bytes;
+
+        Entry(BitmapDescriptor descriptor, Bitmap icon) {
+            this.descriptor = descriptor;
+            this.icon = icon;
+            this.bytes = icon.getByteCount();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory;
+
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.maps.android.clustering.ClusterManager;
+import com.tbaek.travelstory.database.DatabaseHelper;
+import com.tbaek.travelstory.database.DatabaseUtil;
+import com.tbaek.travelstory.database.MappedCursor;
+import com.tbaek.travelstory.database.Projection;
+import com.tbaek.travelstory.database.RowMapper;
+import com.tbaek.travelstory.metrics.Counter;
+import com.tbaek.travelstory.metrics.Metrics;
+import com.tbaek.travelstory.metrics.Timer;
+import com.tbaek.travelstory.model.Image;
+import com.tbaek.travelstory.model.ImageIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the images around the visible region into a {@link ClusterManager} without blocking
+ * the UI thread.
+ *
+ * Every {@link #load(LatLngBounds)} queries the database for the padded viewport. A single
+ * reader thread walks the cursor and hands off rows in chunks to a pool of decoders. The query
+ * leaves the thumbnails out; while the {@link BitmapCache} has room the decoders read and warm
+ * it with the thumbnails of their rows, everything else is loaded lazily when rendered. Chunks
+ * are added to the cluster manager on the main thread as they arrive, and the map is
+ * re-clustered at most once per {@link #RECLUSTER_INTERVAL_MS}. Once a load completes, images
+ * that fell out of the padded viewport are dropped again.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+
+    private static final int CHUNK_SIZE = 50;
+    private static final long RECLUSTER_INTERVAL_MS = 300;
+    // How far beyond the visible region images are materialised, as a share of its span
+    private static final double VIEWPORT_PADDING = 0.5;
+    private static final double MAX_LONGITUDE = 180 - 1e-9;
+
+    private static final Timer QUERY_TIMER = Metrics.timer("db.viewport");
+    private static final Timer THUMBNAIL_TIMER = Metrics.timer("db.thumbnail.prefetch");
+    private static final Timer DECODE_TIMER = Metrics.timer("decode.thumbnail.prefetch");
+    private static final Counter ROWS = Metrics.counter("loader.rows");
+
+    private final DatabaseHelper mDb;
+    private final ClusterManager<Image> mClusterManager;
+    private final BitmapCache mBitmapCache;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mReader = Executors.newSingleThreadExecutor();
+    private final ExecutorService mDecoders;
+    // Limits how many undecoded chunks may wait in memory at once
+    private final Semaphore mChunksInFlight;
+    // Bumped by every load, work of an older generation is dropped
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // Images currently in the cluster manager, the cluster manager holds views into it
+    private final ImageIndex mLoaded = new ImageIndex();
+
+    private volatile boolean mCancelled;
+    private OnLoadedListener mOnLoadedListener;
+    private long mLastClusterTime;
+    private boolean mClusterScheduled;
+
+    private final Runnable mClusterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mClusterScheduled = false;
+            if (mCancelled) return;
+            mLastClusterTime = SystemClock.uptimeMillis();
+            mClusterManager.cluster();
+        }
+    };
+
+    public ImageLoader(DatabaseHelper db, ClusterManager<Image> clusterManager,
+                       BitmapCache bitmapCache) {
+        mDb = db;
+        mClusterManager = clusterManager;
+        mBitmapCache = bitmapCache;
+        int decoders = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        mDecoders = Executors.newFixedThreadPool(decoders);
+        mChunksInFlight = new Semaphore(decoders * 2);
+    }
+
+    // Materialises the images in and around the visible region, called on camera idle
+    public void load(LatLngBounds visible) {
+        final int generation = mGeneration.incrementAndGet();
+        final LatLngBounds bounds = pad(visible);
+        mReader.execute(new Runnable() {
+            @Override
+            public void run() {
+                read(generation, bounds);
+            }
+        });
+    }
+
+    // Called on the main thread after a load has been handed to the cluster manager
+    public void setOnLoadedListener(OnLoadedListener listener) {
+        mOnLoadedListener = listener;
+    }
+
+    // Adds an image that was just created, it is clustered with the next pass
+    public void add(Image image) {
+        mClusterManager.addItem(put(image));
+    }
+
+    // The loaded image with the id, or null once it has been dropped. Slots are reused, so the
+    // view is only good until the loaded images change and callers keep the id instead.
+    public Image get(String id) {
+        return mLoaded.get(id);
+    }
+
+    public void remove(String id) {
+        Image loaded = mLoaded.get(id);
+        if (loaded == null) return;
+        mClusterManager.removeItem(loaded);
+        mLoaded.remove(loaded);
+    }
+
+    // Takes every image off the map, loads that are still running are dropped
+    public void unload() {
+        mGeneration.incrementAndGet();
+        mMainHandler.removeCallbacks(mClusterRunnable);
+        mClusterScheduled = false;
+        mClusterManager.clearItems();
+        mLoaded.clear();
+        mClusterManager.cluster();
+    }
+
+    private Image put(Image image) {
+        LatLng position = image.getPosition();
+        return mLoaded.put(image.getId(), image.getPlace(), position.latitude, position.longitude);
+    }
+
+    // Stops reading and decoding and drops every batch that has not reached the map yet
+    public void cancel() {
+        mCancelled = true;
+        mMainHandler.removeCallbacksAndMessages(null);
+        mReader.shutdownNow();
+        mDecoders.shutdownNow();
+    }
+
+    private boolean isStale(int generation) {
+        return mCancelled || generation != mGeneration.get();
+    }
+
+    private void read(int generation, LatLngBounds bounds) {
+        if (isStale(generation)) return;
+        MappedCursor<Row> cursor = null;
+        try {
+            // Stop warming up once the decoded thumbnails would start evicting each other
+            int thumbnailBytes = mDb.getThumbnailSize() * mDb.getThumbnailSize() * 4;
+            RowReader reader = new RowReader(thumbnailBytes,
+                    mBitmapCache.maxSize() - mBitmapCache.size());
+            // the query runs when the first window is filled, getCount() does that up front
+            long start = QUERY_TIMER.start();
+            try {
+                cursor = mDb.getImagesInBounds(bounds,
+                        new Projection<Row>(RowReader.COLUMNS, reader));
+                ROWS.add(cursor.getCount());
+            } finally {
+                QUERY_TIMER.stop(start);
+            }
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            List<Row> chunk = new ArrayList<Row>(CHUNK_SIZE);
+            while (!isStale(generation) && cursor.moveToNext()) {
+                chunk.add(cursor.get());
+                if (chunk.size() == CHUNK_SIZE) {
+                    pending.add(submit(generation, chunk));
+                    chunk = new ArrayList<Row>(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                pending.add(submit(generation, chunk));
+            }
+            // Wait for the decoders to drain, then evict what is out of range and cluster
+            for (Future<?> future : pending) {
+                future.get();
+            }
+            postFinished(generation, bounds);
+        } catch (InterruptedException e) {
+            // Cancelled while waiting on the decoders
+        } catch (Exception e) {
+            // The database is closed underneath us when the activity goes away
+            if (!mCancelled) {
+                Log.e(TAG, "Failed to load images", e);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private Future<?> submit(final int generation, final List<Row> chunk)
+            throws InterruptedException {
+        mChunksInFlight.acquire();
+        return mDecoders.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<Image> images = new ArrayList<Image>(chunk.size());
+                    for (Row row : chunk) {
+                        if (isStale(generation)) return;
+                        if (row.prefetch && mBitmapCache.get(row.id) == null) {
+                            prefetch(row.id);
+                        }
+                        images.add(Image.create(row.id, row.place, new LatLng(row.lat, row.lng)));
+                    }
+                    postToMap(generation, images);
+                } finally {
+                    mChunksInFlight.release();
+                }
+            }
+        });
+    }
+
+    private void prefetch(String id) {
+        long start = THUMBNAIL_TIMER.start();
+        byte[] thumbnail;
+        try {
+            thumbnail = mDb.getThumbnail(id);
+        } finally {
+            THUMBNAIL_TIMER.stop(start);
+        }
+        if (thumbnail == null) return;
+        start = DECODE_TIMER.start();
+        Bitmap bitmap;
+        try {
+            bitmap = DatabaseUtil.getImage(thumbnail);
+        } finally {
+            DECODE_TIMER.stop(start);
+        }
+        if (bitmap != null) {
+            mBitmapCache.put(id, bitmap);
+        }
+    }
+
+    private void postToMap(final int generation, final List<Image> images) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStale(generation)) return;
+                List<Image> added = new ArrayList<Image>(images.size());
+                for (Image image : images) {
+                    if (!mLoaded.contains(image.getId())) {
+                        added.add(put(image));
+                    }
+                }
+                if (!added.isEmpty()) {
+                    mClusterManager.addItems(added);
+                    scheduleCluster();
+                }
+            }
+        });
+    }
+
+    private void postFinished(final int generation, final LatLngBounds bounds) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStale(generation)) return;
+                for (Image image : mLoaded.findOutside(bounds.southwest.latitude,
+                        bounds.southwest.longitude, bounds.northeast.latitude,
+                        bounds.northeast.longitude)) {
+                    mClusterManager.removeItem(image);
+                    mLoaded.remove(image);
+                }
+                mMainHandler.removeCallbacks(mClusterRunnable);
+                mClusterRunnable.run();
+                if (mOnLoadedListener != null) {
+                    mOnLoadedListener.onLoaded();
+                }
+            }
+        });
+    }
+
+    private void scheduleCluster() {
+        if (mClusterScheduled) return;
+        mClusterScheduled = true;
+        long delay = mLastClusterTime + RECLUSTER_INTERVAL_MS - SystemClock.uptimeMillis();
+        mMainHandler.postDelayed(mClusterRunnable, Math.max(0, delay));
+    }
+
+    private static LatLngBounds pad(LatLngBounds bounds) {
+        double south = bounds.southwest.latitude;
+        double north = bounds.northeast.latitude;
+        double west = bounds.southwest.longitude;
+        double east = bounds.northeast.longitude;
+        double latPadding = (north - south) * VIEWPORT_PADDING;
+        // The region crosses the antimeridian when west is greater than east
+        double lngSpan = west <= east ? east - west : 360 - west + east;
+        double lngPadding = lngSpan * VIEWPORT_PADDING;
+        if (lngSpan + 2 * lngPadding >= 360) {
+            // LatLng wraps 180 to -180, stay just short of it to keep the full width
+            return new LatLngBounds(new LatLng(Math.max(-90, south - latPadding), -180),
+                    new LatLng(Math.min(90, north + latPadding), MAX_LONGITUDE));
+        }
+        return new LatLngBounds(
+                new LatLng(Math.max(-90, south - latPadding), wrap(west - lngPadding)),
+                new LatLng(Math.min(90, north + latPadding), wrap(east + lngPadding)));
+    }
+
+    private static double wrap(double lng) {
+        if (lng < -180) return lng + 360;
+        if (lng > 180) return lng - 360;
+        return lng;
+    }
+
+    public interface OnLoadedListener {
+        void onLoaded();
+    }
+
+    // Marks rows for prefetching only while their thumbnails would fit into the cache
+    private static class RowReader implements RowMapper<Row> {
+        static final String[] COLUMNS = {
+                DatabaseHelper.COLUMN_ID, DatabaseHelper.COLUMN_PLACE_NAME,
+                DatabaseHelper.COLUMN_LAT, DatabaseHelper.COLUMN_LNG };
+
+        private final int mThumbnailBytes;
+        private long mPrefetchBudget;
+        // resolved with the first row
+        private int mId = -1;
+        private int mPlace;
+        private int mLatitude;
+        private int mLongitude;
+
+        RowReader(int thumbnailBytes, long prefetchBudget) {
+            mThumbnailBytes = thumbnailBytes;
+            mPrefetchBudget = prefetchBudget;
+        }
+
+        @Override
+        public Row map(Cursor cursor) {
+            if (mId < 0) {
+                mId = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_ID);
+                mPlace = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_PLACE_NAME);
+                mLatitude = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_LAT);
+                mLongitude = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_LNG);
+            }
+            boolean prefetch = mPrefetchBudget >= mThumbnailBytes;
+            if (prefetch) {
+                mPrefetchBudget -= mThumbnailBytes;
+            }
+            return new Row(cursor.getString(mId), cursor.getString(mPlace),
+                    cursor.getDouble(mLatitude), cursor.getDouble(mLongitude), prefetch);
+        }
+    }
+
+    private static class Row {
+        final String id;
+        final String place;
+        final double lat;
+        final double lng;
+        final boolean prefetch;
+
+        Row(String id, String place, double lat, double lng, boolean prefetch) {
+            this.id = id;
+            this.place = place;
+            this.lat = lat;
+            this.lng = lng;
+            this.prefetch = prefetch;
+        }
+    }
+}
@@ -15,21 +15,24 @@
 
 package com.tbaek.travelstory;
 
+import android.app.ProgressDialog;
+import android.content.ClipData;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.provider.MediaStore;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.FragmentActivity;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.ImageView;
+import android.widget.SearchView;
+import android.widget.Toast;
 
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.location.places.Place;
@@ -39,44 +42,125 @@ import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.TileOverlay;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 import com.google.maps.android.clustering.Cluster;
 import com.google.maps.android.clustering.ClusterItem;
 import com.google.maps.android.clustering.ClusterManager;
 import com.google.maps.android.clustering.view.DefaultClusterRenderer;
 import com.google.maps.android.ui.IconGenerator;
+import com.tbaek.travelstory.clustering.GridAlgorithm;
 import com.tbaek.travelstory.database.DatabaseHelper;
-import com.tbaek.travelstory.database.DatabaseUtil;
+import com.tbaek.travelstory.database.DatabaseWriter;
+import com.tbaek.travelstory.database.ImageCodec;
+import com.tbaek.travelstory.database.ImageMetadata;
+import com.tbaek.travelstory.database.Projection;
+import com.tbaek.travelstory.density.DensityTileProvider;
+import com.tbaek.travelstory.metrics.Metrics;
+import com.tbaek.travelstory.metrics.Timer;
 import com.tbaek.travelstory.model.Image;
+import com.tbaek.travelstory.photo.PhotoDecoder;
+import com.tbaek.travelstory.photo.PhotoImporter;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class MainActivity extends FragmentActivity implements OnMapReadyCallback, PlaceSelectionListener {
 
     // App variables
     private DatabaseHelper db = new DatabaseHelper(this);
+    private DatabaseWriter mWriter;
     private ClusterManager<Image> mClusterManager;
+    private GridAlgorithm<Image> mAlgorithm;
+    private ImageRenderer mRenderer;
+    private ImageLoader mImageLoader;
+    private BitmapCache mBitmapCache;
+    private IconCache mIconCache;
+    private PhotoImporter mPhotoImporter;
+    private PhotoImporter.Import mImport;
+    private ProgressDialog mImportDialog;
     private GoogleMap mMap;
     private FloatingActionButton mFab;
+    private final Handler mHandler = new Handler();
+
+    // Startup snapshot: read on create, drawn as placeholders until the first load arrives
+    private final ExecutorService mSnapshotExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mSearchExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mDensityExecutor = Executors.newSingleThreadExecutor();
+    private DensityTileProvider mDensityTiles;
+    private TileOverlay mDensityOverlay;
+    // Below this zoom level the density overlay replaces the markers
+    private int mDensityZoom;
+    private final List<Marker> mSnapshotMarkers = new ArrayList<Marker>();
+    private StartupSnapshot mSnapshot;
+    private boolean mLoaded;
 
     // Image object variables
     private Place mPlaceSelected;
-    private Image mImageClicked;
-    private String mImageId;
-    private Bitmap mImageBitmap;
-    private LatLng mImageLocation;
-    private String mImagePlaceName;
+    // By id, the loader reuses the Image of an evicted photo for another one
+    private String mSelectedId;
 
     private static final int REQUEST_CODE_IMAGE_REQUEST = 1;
     private static final float zoomInLevel = 9.5f;
+    private static final int MOSAIC_COLUMNS = 3;
+    private static final int MOSAIC_ROWS = 3;
+    // Changes arriving within this window are rendered in a single clustering pass
+    private static final long CLUSTER_DEBOUNCE_MS = 100;
+    // How photos are stored; ImageCodec.original() keeps the picked files byte for byte
+    private static final ImageCodec IMAGE_CODEC = ImageCodec.jpeg(90, 2 * 1024 * 1024);
+    private static final String SNAPSHOT_FILE = "startup_snapshot";
+    private static final String DENSITY_TILE_DIRECTORY = "density_tiles";
+    // Icons beyond this many are left to the default pin, the atlas stays small to decode
+    private static final int SNAPSHOT_MAX_ICONS = 64;
+    // Saved this long after a change, so the icons of the new clusters have been drawn
+    private static final long SNAPSHOT_DELAY_MS = 5000;
     private static final String ERROR_TAG = "error";
     private static final String CANCELED_TAG = "canceled";
+    private static final Timer ITEM_ICON_TIMER = Metrics.timer("render.icon.item");
+    private static final Timer CLUSTER_ICON_TIMER = Metrics.timer("render.icon.cluster");
+    // Set once the orphaned files of this process have been swept, only touched on the main thread
+    private static boolean sOrphansDeleted;
+
+    private final Runnable mClusterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mClusterManager.cluster();
+        }
+    };
+
+    // Redraws the placeholder icons once the thumbnails they wait for have been loaded
+    private final Runnable mIconRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mRenderer != null) {
+                mRenderer.refreshIcons();
+            }
+        }
+    };
+
+    private final Runnable mSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveSnapshot();
+        }
+    };
 
     public class ImageRenderer extends DefaultClusterRenderer<Image> implements
             ClusterManager.OnClusterClickListener<Image>,
@@ -85,7 +169,10 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
         private final IconGenerator mClusterIconGenerator = new IconGenerator(getApplicationContext());
         private final ImageView mImageView;
         private final ImageView mClusterImageView;
+        private final MultiDrawable mMosaic;
         private final int mDimension;
+        // The clusters on the map, their markers are redrawn as thumbnails arrive
+        private Set<? extends Cluster<Image>> mClusters = Collections.emptySet();
 
         public ImageRenderer() {
             super(getApplicationContext(), mMap, mClusterManager);
@@ -106,36 +193,129 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
             int padding = (int) getResources().getDimension(R.dimen.custom_profile_padding);
             mImageView.setPadding(padding, padding, padding, padding);
             mIconGenerator.setContentView(mImageView);
+
+            // One mosaic bitmap is recomposited for every cluster icon
+            mMosaic = new MultiDrawable(mDimension, MOSAIC_COLUMNS, MOSAIC_ROWS);
+            mMosaic.setBounds(0, 0, mDimension, mDimension);
+            mClusterImageView.setImageDrawable(mMosaic);
         }
 
         @Override
         public void onBeforeClusterItemRendered(Image image, MarkerOptions markerOptions) {
-            // Draw a single image. Set the info window to show their name.
-            mImageView.setImageBitmap(image.mImage);
-            Bitmap icon = mIconGenerator.makeIcon();
-            markerOptions.icon(BitmapDescriptorFactory.fromBitmap(icon)).title(image.place);
+            long start = ITEM_ICON_TIMER.start();
+            try {
+                renderItemIcon(image, markerOptions);
+            } finally {
+                ITEM_ICON_TIMER.stop(start);
+            }
         }
 
         @Override
         public void onBeforeClusterRendered(Cluster<Image> cluster, MarkerOptions markerOptions) {
-            // Draw multiple images
-            List<Drawable> yourImages = new ArrayList<Drawable>(Math.min(4, cluster.getSize()));
-            int width = mDimension;
-            int height = mDimension;
+            long start = CLUSTER_ICON_TIMER.start();
+            try {
+                renderClusterIcon(cluster, markerOptions);
+            } finally {
+                CLUSTER_ICON_TIMER.stop(start);
+            }
+        }
 
+        private void renderItemIcon(Image image, MarkerOptions markerOptions) {
+            markerOptions.title(image.getPlace());
+            // Reuse the icon from an earlier render if there is one
+            String key = IconCache.itemKey(image.getId());
+            BitmapDescriptor cached = mIconCache.get(key);
+            if (cached != null) {
+                markerOptions.icon(cached);
+                return;
+            }
+            // Draw a single image. Set the info window to show their name. Until the thumbnail
+            // is loaded the empty frame stands in for it.
+            Bitmap thumbnail = mBitmapCache.getOrLoad(image.getId());
+            mImageView.setImageBitmap(thumbnail);
+            Bitmap icon = mIconGenerator.makeIcon();
+            if (thumbnail != null) {
+                markerOptions.icon(mIconCache.put(key, icon));
+            } else {
+                markerOptions.icon(BitmapDescriptorFactory.fromBitmap(icon));
+            }
+        }
+
+        // The mosaic shows the first few images only
+        private String[] getMosaicIds(Cluster<Image> cluster) {
+            String[] memberIds = new String[Math.min(mMosaic.getMaxImages(), cluster.getSize())];
+            int members = 0;
             for (Image p : cluster.getItems()) {
-                // Draw 4 at most.
-                if (yourImages.size() == 4) break;
-                Drawable drawable = new BitmapDrawable(getResources(),p.mImage);
-                drawable.setBounds(0, 0, width, height);
-                yourImages.add(drawable);
-            }
-            MultiDrawable multiDrawable = new MultiDrawable(yourImages);
-            multiDrawable.setBounds(0, 0, width, height);
-
-            mClusterImageView.setImageDrawable(multiDrawable);
-            Bitmap icon = mClusterIconGenerator.makeIcon(String.valueOf(cluster.getSize()));
-            markerOptions.icon(BitmapDescriptorFactory.fromBitmap(icon));
+                if (members == memberIds.length) break;
+                memberIds[members++] = p.getId();
+            }
+            return memberIds;
+        }
+
+        // The key the icon of the cluster is cached under, whether it is drawn as one or not
+        String getIconKey(Cluster<Image> cluster) {
+            if (!shouldRenderAsCluster(cluster)) {
+                return IconCache.itemKey(cluster.getItems().iterator().next().getId());
+            }
+            return IconCache.clusterKey(getMosaicIds(cluster), String.valueOf(cluster.getSize()));
+        }
+
+        private void renderClusterIcon(Cluster<Image> cluster, MarkerOptions markerOptions) {
+            String[] memberIds = getMosaicIds(cluster);
+            String label = String.valueOf(cluster.getSize());
+            String key = IconCache.clusterKey(memberIds, label);
+            BitmapDescriptor cached = mIconCache.get(key);
+            if (cached != null) {
+                markerOptions.icon(cached);
+                return;
+            }
+
+            // Draw multiple images
+            List<Bitmap> yourImages = new ArrayList<Bitmap>(memberIds.length);
+            for (String id : memberIds) {
+                Bitmap thumbnail = mBitmapCache.getOrLoad(id);
+                if (thumbnail == null) continue;
+                yourImages.add(thumbnail);
+            }
+            mMosaic.setImages(yourImages);
+
+            Bitmap icon = mClusterIconGenerator.makeIcon(label);
+            // Only complete mosaics are cached, a missing thumbnail gets another try next time
+            if (yourImages.size() == memberIds.length) {
+                markerOptions.icon(mIconCache.put(key, icon));
+            } else {
+                markerOptions.icon(BitmapDescriptorFactory.fromBitmap(icon));
+            }
+        }
+
+        // Icons drawn with a thumbnail missing are not cached, those are drawn again
+        void refreshIcons() {
+            for (Cluster<Image> cluster : mClusters) {
+                if (mIconCache.get(getIconKey(cluster)) != null) continue;
+                MarkerOptions markerOptions = new MarkerOptions();
+                Marker marker;
+                if (shouldRenderAsCluster(cluster)) {
+                    marker = getMarker(cluster);
+                    if (marker == null) continue;
+                    renderClusterIcon(cluster, markerOptions);
+                } else {
+                    Image image = cluster.getItems().iterator().next();
+                    marker = getMarker(image);
+                    if (marker == null) continue;
+                    renderItemIcon(image, markerOptions);
+                }
+                marker.setIcon(markerOptions.getIcon());
+            }
+        }
+
+        @Override
+        public void onClustersChanged(Set<? extends Cluster<Image>> clusters) {
+            super.onClustersChanged(clusters);
+            mClusters = clusters;
+            // The markers of the database take over from the snapshot
+            if (mLoaded) {
+                removeSnapshotMarkers();
+            }
         }
 
         @Override
@@ -175,7 +355,7 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
             // Log.i("hit", "item clicked!");
             // TODO: Change to opening a display ImageView Activity
             mFab.setVisibility(View.VISIBLE);
-            mImageClicked = image;
+            mSelectedId = image.getId();
             return false;
         }
     }
@@ -187,6 +367,29 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
                 WindowManager.LayoutParams.FLAG_FULLSCREEN);
         setContentView(R.layout.activity_main);
 
+        mDensityZoom = getResources().getInteger(R.integer.density_zoom_threshold);
+        mBitmapCache = new BitmapCache(BitmapCache.getDefaultSize(this), db);
+        mBitmapCache.setOnLoadedListener(new BitmapCache.OnLoadedListener() {
+            @Override
+            public void onThumbnailLoaded(String id) {
+                // thumbnails of one render arrive together, they are drawn in one pass
+                mHandler.removeCallbacks(mIconRefreshRunnable);
+                mHandler.postDelayed(mIconRefreshRunnable, CLUSTER_DEBOUNCE_MS);
+            }
+        });
+        mIconCache = new IconCache(BitmapCache.getDefaultSize(this) / 2);
+        mWriter = new DatabaseWriter(db);
+        if (!sOrphansDeleted) {
+            // Once per process, before any import can have stored files ahead of their rows. An
+            // activity recreated without saved state must not sweep files an import of the
+            // previous one is still committing
+            sOrphansDeleted = true;
+            mWriter.deleteOrphanedFiles();
+        }
+        registerMemoryGauges();
+        mPhotoImporter = new PhotoImporter(getContentResolver(), db, mWriter, mBitmapCache,
+                IMAGE_CODEC, PhotoDecoder.getDefaultMaxBytes(this));
+
         // Setup App variables (Google map & ClusterManager)
         setUpMap();
         // Register FloatingActionButton
@@ -195,14 +398,28 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
         mFab.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-            if (mImageClicked != null) {
+            Image selected = mSelectedId != null ? mImageLoader.get(mSelectedId) : null;
+            if (selected != null) {
                 // Delete selected image from database
-                db.deleteEntry(mImageClicked.getId());
+                String id = mSelectedId;
+                final LatLng position = selected.getPosition();
+                mWriter.deleteEntry(id, new DatabaseWriter.Callback<Void>() {
+                    @Override
+                    public void onComplete(Void result, Exception error) {
+                        if (error == null) {
+                            invalidateDensity(Collections.singletonList(position));
+                        }
+                    }
+                });
+                mBitmapCache.remove(id);
+                mIconCache.invalidate(id);
                 // Pop the image from ClusterManager
-                mClusterManager.removeItem(mImageClicked);
-                // Re-cluster
-                startCluster();
+                mImageLoader.remove(id);
+                // Only the cells of the image change, the markers follow with the next pass
+                scheduleCluster();
+                scheduleSnapshot();
             }
+            clearSelection();
             }
         });
         // Retrieve the PlaceAutocompleteFragment.
@@ -211,6 +428,22 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
         // Register a listener to receive callbacks when a place has been selected or an error has
         // occurred.
         searchFragment.setOnPlaceSelectedListener(this);
+        // Searching the photos that are already stored, by the name of their place
+        SearchView photoSearch = (SearchView) findViewById(R.id.photo_search);
+        photoSearch.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchPhotos(query);
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                return false;
+            }
+        });
+        // Usually done before the map is, so the last view is up as soon as there is a map
+        readSnapshot();
     }
 
     @Override
@@ -218,10 +451,76 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
         Log.e(ERROR_TAG, status.getStatusMessage());
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        saveSnapshot();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        db.close();
+        mHandler.removeCallbacks(mClusterRunnable);
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        mHandler.removeCallbacks(mIconRefreshRunnable);
+        mBitmapCache.shutdown();
+        // A snapshot that is being written is still finished
+        mSnapshotExecutor.shutdown();
+        mSearchExecutor.shutdownNow();
+        mDensityExecutor.shutdown();
+        if (mSnapshot != null) {
+            mSnapshot.recycle();
+            mSnapshot = null;
+        }
+        if (mImport != null) {
+            mImport.cancel();
+            mImportDialog.dismiss();
+        }
+        mPhotoImporter.shutdown();
+        if (mImageLoader != null) {
+            mImageLoader.cancel();
+        }
+        // Pending writes still go through, the writer closes the database afterwards
+        mWriter.shutdown();
+    }
+
+    // adb shell dumpsys activity com.tbaek.travelstory
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        Metrics.dump(writer);
+    }
+
+    private void registerMemoryGauges() {
+        Metrics.gauge("memory.thumbnails.bytes", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mBitmapCache.size();
+            }
+        });
+        Metrics.gauge("memory.icons.bytes", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mIconCache.size();
+            }
+        });
+        Metrics.gauge("memory.heap.used.bytes", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                Runtime runtime = Runtime.getRuntime();
+                return runtime.totalMemory() - runtime.freeMemory();
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mBitmapCache.trimMemory(level);
+        if (level >= TRIM_MEMORY_MODERATE) {
+            mIconCache.evictAll();
+        }
     }
 
     @Override
@@ -230,8 +529,21 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
         mMap.getUiSettings().setMapToolbarEnabled(false);
         // Setup Cluster Manager
         setUpClusterManager();
-        // Check if any data exists in the storage
-        loadImageFromDatabase();
+        // Images are loaded for the visible region whenever the camera comes to rest
+        mImageLoader = new ImageLoader(db, mClusterManager, mBitmapCache);
+        mImageLoader.setOnLoadedListener(new ImageLoader.OnLoadedListener() {
+            @Override
+            public void onLoaded() {
+                mLoaded = true;
+                // the selected image may have been dropped with the ones out of range
+                if (mSelectedId != null && mImageLoader.get(mSelectedId) == null) {
+                    clearSelection();
+                }
+            }
+        });
+        setUpDensityOverlay();
+        showSnapshot();
+        loadVisibleRegion();
     }
 
     @Override
@@ -242,6 +554,8 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
         // Show only images, no videos or anything else
         intent.setType("image/*");
         intent.setAction(Intent.ACTION_GET_CONTENT);
+        // A whole trip can be picked at once
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         // Always show the chooser (if there are multiple options available)
         startActivityForResult(Intent.createChooser(intent, "Select Picture"), REQUEST_CODE_IMAGE_REQUEST);
     }
@@ -252,29 +566,77 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
 
         if (requestCode == REQUEST_CODE_IMAGE_REQUEST) {
             if (resultCode == RESULT_OK) {
-                try {
-                    Uri selectedImageUri = data.getData();
-                    Log.e(ERROR_TAG, "after selectedImageUri");
-                    mImageBitmap = MediaStore.Images.Media.getBitmap(this.getContentResolver(), selectedImageUri);
-                    mImageId = UUID.randomUUID().toString();
-                    mImageLocation = mPlaceSelected.getLatLng();
-                    mImagePlaceName = formatPlaceName();
-                    Log.e(ERROR_TAG, "before save to database");
-                    // Add new Image
-                    addItems();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.e(ERROR_TAG, e.getMessage());
-                }
-                startCluster();
-                mMap.moveCamera(CameraUpdateFactory.newLatLngZoom(mImageLocation, zoomInLevel));
-                // Save Bitmap and LatLng
-                saveImageToDatabase();
+                importImages(getSelectedUris(data), mPlaceSelected.getLatLng(), formatPlaceName());
             }
             else if (resultCode == RESULT_CANCELED) {
-                Log.i(CANCELED_TAG, "Activity canceled, returned to previous activity");
+                if (Log.isLoggable(CANCELED_TAG, Log.DEBUG)) {
+                    Log.d(CANCELED_TAG, "Activity canceled, returned to previous activity");
+                }
+            }
+        }
+    }
+
+    // A multiple selection arrives as ClipData, a single one as the intent's data
+    private static List<Uri> getSelectedUris(Intent data) {
+        List<Uri> uris = new ArrayList<Uri>();
+        ClipData clipData = data.getClipData();
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                uris.add(clipData.getItemAt(i).getUri());
             }
+        } else if (data.getData() != null) {
+            uris.add(data.getData());
         }
+        return uris;
+    }
+
+    private void importImages(List<Uri> uris, LatLng location, String placeName) {
+        if (uris.isEmpty()) return;
+        mImportDialog = new ProgressDialog(this);
+        mImportDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mImportDialog.setMessage(getString(R.string.import_progress));
+        mImportDialog.setMax(uris.size());
+        mImportDialog.setCancelable(false);
+        mImportDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.action_cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mImport.cancel();
+                        mImport = null;
+                    }
+                });
+        mImportDialog.show();
+
+        mImport = mPhotoImporter.start(uris, location, placeName, new PhotoImporter.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+                mImportDialog.setProgress(done);
+            }
+
+            @Override
+            public void onComplete(List<Image> imported) {
+                mImport = null;
+                if (isDestroyed()) return;
+                mImportDialog.dismiss();
+                // Before the map is ready there is nothing to update, its first load reads them
+                if (imported.isEmpty() || mImageLoader == null || mDensityOverlay == null) return;
+                LatLngBounds.Builder bounds = LatLngBounds.builder();
+                List<LatLng> positions = new ArrayList<LatLng>(imported.size());
+                for (Image image : imported) {
+                    // Markers are only shown above the density zoom, the next load picks them up
+                    if (!mDensityOverlay.isVisible()) {
+                        mImageLoader.add(image);
+                    }
+                    bounds.include(image.getPosition());
+                    positions.add(image.getPosition());
+                }
+                // A single clustering pass for the whole selection
+                scheduleCluster();
+                scheduleSnapshot();
+                invalidateDensity(positions);
+                moveCameraTo(bounds.build());
+            }
+        });
     }
 
     private void setUpMap() {
@@ -285,63 +647,232 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
 
     private void setUpClusterManager() {
         mClusterManager = new ClusterManager<Image>(this, mMap);
-        mClusterManager.setRenderer(new ImageRenderer());
+        // Clusters for every zoom level are precomputed, a camera change is only a lookup
+        mAlgorithm = new GridAlgorithm<Image>();
+        mClusterManager.setAlgorithm(mAlgorithm);
+        mRenderer = new ImageRenderer();
+        mClusterManager.setRenderer(mRenderer);
 
-        mMap.setOnCameraIdleListener(mClusterManager);
+        mMap.setOnCameraIdleListener(new GoogleMap.OnCameraIdleListener() {
+            @Override
+            public void onCameraIdle() {
+                loadVisibleRegion();
+                mClusterManager.onCameraIdle();
+            }
+        });
         mMap.setOnMarkerClickListener(mClusterManager);
         mMap.setOnInfoWindowClickListener(mClusterManager);
         mMap.setOnMapClickListener(new GoogleMap.OnMapClickListener() {
             @Override
             public void onMapClick(LatLng latLng) {
-                if(mFab.isShown()) {
-                    mFab.setVisibility(View.GONE);
-                }
+                clearSelection();
             }
         });
     }
 
-    private void saveImageToDatabase() {
-        Log.e(ERROR_TAG, "in save to database");
-        byte[] image = DatabaseUtil.getBytes(mImageBitmap);
-        db.addEntry(mImageId, mImagePlaceName, mImageLocation.latitude, mImageLocation.longitude, image);
+    private void clearSelection() {
+        mSelectedId = null;
+        if (mFab.isShown()) {
+            mFab.setVisibility(View.GONE);
+        }
+    }
+
+    // Photos of one place are zoomed in on, a whole trip is fitted into the view
+    private void moveCameraTo(LatLngBounds bounds) {
+        if (bounds.southwest.equals(bounds.northeast)) {
+            mMap.moveCamera(CameraUpdateFactory.newLatLngZoom(bounds.getCenter(), zoomInLevel));
+        } else {
+            mMap.moveCamera(CameraUpdateFactory.newLatLngBounds(bounds, 100));
+        }
     }
 
-    private void loadImageFromDatabase() {
-        Cursor cursor = db.getAllImages();
-        if (cursor.getCount() == 0) {
+    // Jumps to the bounds of the stored photos whose place matches the query
+    private void searchPhotos(final String query) {
+        mSearchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<ImageMetadata> matches = db.searchImages(query, Projection.METADATA,
+                        DatabaseHelper.DEFAULT_SEARCH_LIMIT);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed() || mMap == null) return;
+                        if (matches.isEmpty()) {
+                            Toast.makeText(MainActivity.this, R.string.photo_search_empty,
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        LatLngBounds.Builder bounds = LatLngBounds.builder();
+                        for (ImageMetadata image : matches) {
+                            bounds.include(new LatLng(image.latitude, image.longitude));
+                        }
+                        // The photos in the new view are loaded once the camera is idle
+                        moveCameraTo(bounds.build());
+                    }
+                });
+            }
+        });
+    }
+
+    private void setUpDensityOverlay() {
+        mDensityTiles = new DensityTileProvider(db, new File(getCacheDir(), DENSITY_TILE_DIRECTORY),
+                mDensityZoom, ContextCompat.getColor(this, R.color.colorPrimary),
+                ContextCompat.getColor(this, R.color.colorAccent));
+        mDensityOverlay = mMap.addTileOverlay(new TileOverlayOptions()
+                .tileProvider(mDensityTiles)
+                .visible(false));
+    }
+
+    // Zoomed out the map shows the density tiles, closer in the clustered markers
+    private void loadVisibleRegion() {
+        boolean density = mMap.getCameraPosition().zoom < mDensityZoom;
+        if (density != mDensityOverlay.isVisible()) {
+            mDensityOverlay.setVisible(density);
+            if (density) {
+                mImageLoader.unload();
+                clearSelection();
+            }
+        }
+        if (density) {
+            // The tiles are read from disk, they take over from the snapshot right away
+            mLoaded = true;
+            removeSnapshotMarkers();
             return;
         }
+        loadImageFromDatabase();
+    }
+
+    // Redraws the tiles around photos that were added or deleted, once the change is committed
+    private void invalidateDensity(final List<LatLng> positions) {
+        if (isDestroyed() || mDensityTiles == null) return;
+        mDensityExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDensityTiles.invalidate(positions);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed()) return;
+                        mDensityOverlay.clearTileCache();
+                    }
+                });
+            }
+        });
+    }
 
-        if (cursor.moveToFirst()) {
-            do {
-                mImageId = cursor.getString(0);
-                mImagePlaceName = cursor.getString(1);
-                mImageLocation = new LatLng(cursor.getDouble(2), cursor.getDouble(3));
-                mImageBitmap = DatabaseUtil.getImage(cursor.getBlob(4));
-                addItems();
-            }while(cursor.moveToNext());
+    private void loadImageFromDatabase() {
+        // Markers show up in batches while the rest is still being decoded in the background
+        LatLngBounds visible = mMap.getProjection().getVisibleRegion().latLngBounds;
+        mImageLoader.load(visible);
+    }
+
+    private void scheduleCluster() {
+        mHandler.removeCallbacks(mClusterRunnable);
+        mHandler.postDelayed(mClusterRunnable, CLUSTER_DEBOUNCE_MS);
+    }
+
+    private File getSnapshotFile() {
+        return new File(getFilesDir(), SNAPSHOT_FILE);
+    }
+
+    private void readSnapshot() {
+        final File file = getSnapshotFile();
+        mSnapshotExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final StartupSnapshot snapshot = StartupSnapshot.read(file);
+                if (snapshot == null) return;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed()) {
+                            snapshot.recycle();
+                            return;
+                        }
+                        mSnapshot = snapshot;
+                        showSnapshot();
+                    }
+                });
+            }
+        });
+    }
+
+    // Puts the last camera and markers up while the database is still being read
+    private void showSnapshot() {
+        if (mSnapshot == null || mMap == null) return;
+        StartupSnapshot snapshot = mSnapshot;
+        mSnapshot = null;
+        // Too late, the database has beaten the snapshot to the map
+        if (mLoaded) {
+            snapshot.recycle();
+            return;
         }
-        Log.e(ERROR_TAG, "after cursor.moveToFirst()");
-        startCluster();
+        mMap.moveCamera(CameraUpdateFactory.newCameraPosition(snapshot.camera));
+        for (StartupSnapshot.Marker marker : snapshot.markers) {
+            Bitmap icon = snapshot.getIcon(marker);
+            MarkerOptions options = new MarkerOptions().position(marker.position);
+            if (icon != null) {
+                options.icon(BitmapDescriptorFactory.fromBitmap(icon));
+            }
+            mSnapshotMarkers.add(mMap.addMarker(options));
+        }
+        snapshot.recycle();
     }
 
-    private void startCluster() {
-        Log.e(ERROR_TAG, "in startCluster");
-        mClusterManager.cluster();
+    private void removeSnapshotMarkers() {
+        for (Marker marker : mSnapshotMarkers) {
+            marker.remove();
+        }
+        mSnapshotMarkers.clear();
     }
 
-    private String formatPlaceName() {
-        return mPlaceSelected.getAddress().toString();
+    private void scheduleSnapshot() {
+        mHandler.removeCallbacks(mSnapshotRunnable);
+        mHandler.postDelayed(mSnapshotRunnable, SNAPSHOT_DELAY_MS);
     }
 
-    private void addItems() {
-        try {
-            Log.e(ERROR_TAG, "in addItems");
-            mClusterManager.addItem(new Image(mImageId, mImagePlaceName, mImageLocation, mImageBitmap));
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.e(ERROR_TAG, e.getMessage());
+    // Captures the clusters in view with their cached icons, the file is written in the background
+    private void saveSnapshot() {
+        // Before the first load the map has nothing worth keeping, the old snapshot stays
+        if (mMap == null || !mLoaded) return;
+        CameraPosition camera = mMap.getCameraPosition();
+        LatLngBounds visible = mMap.getProjection().getVisibleRegion().latLngBounds;
+        List<Cluster<Image>> clusters = new ArrayList<Cluster<Image>>();
+        for (Cluster<Image> cluster : mAlgorithm.getClusters(camera.zoom)) {
+            if (visible.contains(cluster.getPosition())) {
+                clusters.add(cluster);
+            }
+        }
+        // The biggest clusters get the icons if there are more than fit into the atlas
+        Collections.sort(clusters, new Comparator<Cluster<Image>>() {
+            @Override
+            public int compare(Cluster<Image> a, Cluster<Image> b) {
+                return b.getSize() - a.getSize();
+            }
+        });
+        StartupSnapshot.Builder builder = new StartupSnapshot.Builder(camera, SNAPSHOT_MAX_ICONS);
+        for (Cluster<Image> cluster : clusters) {
+            builder.add(cluster.getPosition(), cluster.getSize(),
+                    mIconCache.getBitmap(mRenderer.getIconKey(cluster)));
         }
+        final StartupSnapshot snapshot = builder.build();
+        final File file = getSnapshotFile();
+        mSnapshotExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.write(file);
+                } catch (IOException e) {
+                    Log.e(ERROR_TAG, "Could not save the startup snapshot", e);
+                } finally {
+                    snapshot.recycle();
+                }
+            }
+        });
+    }
+
+    private String formatPlaceName() {
+        return mPlaceSelected.getAddress().toString();
     }
 
 }
@@ -15,86 +15,111 @@
 
 package com.tbaek.travelstory;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 
 import java.util.List;
 
+/**
+ * Mosaic of up to columns x rows images.
+ *
+ * The tiles are composited once per {@link #setImages(List)} into a bitmap that is reused for
+ * every mosaic, so drawing is a single bitmap blit without any allocation. When there are fewer
+ * images than cells, the leftmost columns hold one image less and stretch them, e.g. three
+ * images become a left half and two right quarters.
+ */
 public class MultiDrawable extends Drawable {
-    private final List<Drawable> mDrawables;
+    private final Bitmap mMosaic;
+    private final Canvas mMosaicCanvas;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrc = new Rect();
+    private final Rect mDst = new Rect();
+    private final int mMaxColumns;
+    private final int mMaxRows;
+
+    public MultiDrawable(int size, int maxColumns, int maxRows) {
+        mMosaic = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        mMosaicCanvas = new Canvas(mMosaic);
+        mMaxColumns = maxColumns;
+        mMaxRows = maxRows;
+    }
 
-    public MultiDrawable(List<Drawable> drawables) {
-        mDrawables = drawables;
+    public int getMaxImages() {
+        return mMaxColumns * mMaxRows;
     }
 
-    @Override
-    public void draw(Canvas canvas) {
-        if (mDrawables.size() == 1) {
-            mDrawables.get(0).draw(canvas);
-            return;
+    public void setImages(List<Bitmap> images) {
+        int count = Math.min(images.size(), getMaxImages());
+        int size = mMosaic.getWidth();
+        mMosaic.eraseColor(Color.TRANSPARENT);
+        if (count > 0) {
+            int columns = Math.min(mMaxColumns, (int) Math.ceil(Math.sqrt(count)));
+            int rows = Math.min(mMaxRows, (count + columns - 1) / columns);
+            columns = (count + rows - 1) / rows;
+            // the first columns take one image less so every cell is covered
+            int shortColumns = columns * rows - count;
+
+            int image = 0;
+            for (int column = 0; column < columns; column++) {
+                int left = column * size / columns;
+                int right = (column + 1) * size / columns;
+                int cells = column < shortColumns ? rows - 1 : rows;
+                for (int cell = 0; cell < cells; cell++) {
+                    mDst.set(left, cell * size / cells, right, (cell + 1) * size / cells);
+                    drawCropped(images.get(image++));
+                }
+            }
         }
-        int width = getBounds().width();
-        int height = getBounds().height();
-
-        canvas.save();
-        canvas.clipRect(0, 0, width, height);
+        invalidateSelf();
+    }
 
-        if (mDrawables.size() == 2 || mDrawables.size() == 3) {
-            // Paint left half
-            canvas.save();
-            canvas.clipRect(0, 0, width / 2, height);
-            canvas.translate(-width / 4, 0);
-            mDrawables.get(0).draw(canvas);
-            canvas.restore();
-        }
-        if (mDrawables.size() == 2) {
-            // Paint right half
-            canvas.save();
-            canvas.clipRect(width / 2, 0, width, height);
-            canvas.translate(width / 4, 0);
-            mDrawables.get(1).draw(canvas);
-            canvas.restore();
+    // center-crops the source to the aspect ratio of mDst and scales it down into place
+    private void drawCropped(Bitmap source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (width * mDst.height() > height * mDst.width()) {
+            int cropped = height * mDst.width() / mDst.height();
+            mSrc.set((width - cropped) / 2, 0, (width + cropped) / 2, height);
         } else {
-            // Paint top right
-            canvas.save();
-            canvas.scale(.5f, .5f);
-            canvas.translate(width, 0);
-            mDrawables.get(1).draw(canvas);
-
-            // Paint bottom right
-            canvas.translate(0, height);
-            mDrawables.get(2).draw(canvas);
-            canvas.restore();
+            int cropped = width * mDst.height() / mDst.width();
+            mSrc.set(0, (height - cropped) / 2, width, (height + cropped) / 2);
         }
+        mMosaicCanvas.drawBitmap(source, mSrc, mDst, mPaint);
+    }
 
-        if (mDrawables.size() >= 4) {
-            // Paint top left
-            canvas.save();
-            canvas.scale(.5f, .5f);
-            mDrawables.get(0).draw(canvas);
+    @Override
+    public void draw(Canvas canvas) {
+        canvas.drawBitmap(mMosaic, null, getBounds(), mPaint);
+    }
 
-            // Paint bottom left
-            canvas.translate(0, height);
-            mDrawables.get(3).draw(canvas);
-            canvas.restore();
-        }
+    @Override
+    public int getIntrinsicWidth() {
+        return mMosaic.getWidth();
+    }
 
-        canvas.restore();
+    @Override
+    public int getIntrinsicHeight() {
+        return mMosaic.getHeight();
     }
 
     @Override
     public void setAlpha(int i) {
-
+        mPaint.setAlpha(i);
     }
 
     @Override
     public void setColorFilter(ColorFilter colorFilter) {
-
+        mPaint.setColorFilter(colorFilter);
     }
 
     @Override
     public int getOpacity() {
-        return 0;
+        return PixelFormat.TRANSLUCENT;
     }
 }
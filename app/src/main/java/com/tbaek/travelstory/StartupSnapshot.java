@@ -0,0 +1,271 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the map showed when the app was last left: the camera, the cluster centroids with their
+ * counts and the icons of the clusters in view, packed into a single atlas bitmap.
+ *
+ * A cold start draws the snapshot as plain markers right away and replaces them once the images
+ * have been loaded from the database. The file is written to a temporary file and renamed, so a
+ * snapshot is either complete or absent.
+ */
+public class StartupSnapshot {
+    private static final String TAG = "StartupSnapshot";
+
+    private static final int MAGIC = 0x54535331;  // "TSS1"
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+    // icons are packed in rows no wider than this
+    private static final int ATLAS_WIDTH = 1024;
+    private static final int NO_ICON = -1;
+
+    public final CameraPosition camera;
+    public final List<Marker> markers;
+    private final Bitmap mAtlas;
+
+    StartupSnapshot(CameraPosition camera, List<Marker> markers, Bitmap atlas) {
+        this.camera = camera;
+        this.markers = Collections.unmodifiableList(markers);
+        mAtlas = atlas;
+    }
+
+    // A copy of the icon of the marker, or null if it was not rendered when saved. It stays
+    // valid after recycle(); createBitmap() of a region may return the atlas itself when the
+    // icon covers all of it, so the pixels are drawn into a bitmap of their own instead.
+    public Bitmap getIcon(Marker marker) {
+        if (mAtlas == null || marker.iconX == NO_ICON) return null;
+        Bitmap icon = Bitmap.createBitmap(marker.iconWidth, marker.iconHeight,
+                Bitmap.Config.ARGB_8888);
+        new Canvas(icon).drawBitmap(mAtlas,
+                new Rect(marker.iconX, marker.iconY, marker.iconX + marker.iconWidth,
+                        marker.iconY + marker.iconHeight),
+                new Rect(0, 0, marker.iconWidth, marker.iconHeight), null);
+        return icon;
+    }
+
+    public void recycle() {
+        if (mAtlas != null) {
+            mAtlas.recycle();
+        }
+    }
+
+    /**
+     * Reads the snapshot, or returns null if there is none or it was written by another version.
+     * Does disk I/O and decodes the atlas, so it is called off the main thread.
+     */
+    public static StartupSnapshot read(File file) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            CameraPosition camera = new CameraPosition(
+                    new LatLng(in.readDouble(), in.readDouble()),
+                    in.readFloat(), in.readFloat(), in.readFloat());
+            int count = in.readInt();
+            List<Marker> markers = new ArrayList<Marker>(count);
+            for (int i = 0; i < count; i++) {
+                markers.add(new Marker(new LatLng(in.readDouble(), in.readDouble()), in.readInt(),
+                        in.readShort(), in.readShort(), in.readShort(), in.readShort()));
+            }
+            Bitmap atlas = null;
+            int atlasLength = in.readInt();
+            if (atlasLength > 0) {
+                byte[] png = new byte[atlasLength];
+                in.readFully(png);
+                atlas = BitmapFactory.decodeByteArray(png, 0, png.length);
+            }
+            return new StartupSnapshot(camera, markers, atlas);
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated snapshot " + file);
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written
+            }
+        }
+    }
+
+    /** Encodes the atlas and writes the snapshot, off the main thread as well. */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(camera.target.latitude);
+            out.writeDouble(camera.target.longitude);
+            out.writeFloat(camera.zoom);
+            out.writeFloat(camera.tilt);
+            out.writeFloat(camera.bearing);
+            out.writeInt(markers.size());
+            for (Marker marker : markers) {
+                out.writeDouble(marker.position.latitude);
+                out.writeDouble(marker.position.longitude);
+                out.writeInt(marker.count);
+                out.writeShort(marker.iconX);
+                out.writeShort(marker.iconY);
+                out.writeShort(marker.iconWidth);
+                out.writeShort(marker.iconHeight);
+            }
+            if (mAtlas != null) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                mAtlas.compress(Bitmap.CompressFormat.PNG, 100, png);
+                out.writeInt(png.size());
+                png.writeTo(out);
+            } else {
+                out.writeInt(0);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move " + temp + " to " + file);
+        }
+    }
+
+    /** A cluster centroid as it was drawn, with the area of its icon in the atlas. */
+    public static class Marker {
+        public final LatLng position;
+        public final int count;
+        final int iconX;
+        final int iconY;
+        final int iconWidth;
+        final int iconHeight;
+
+        Marker(LatLng position, int count, int iconX, int iconY, int iconWidth, int iconHeight) {
+            this.position = position;
+            this.count = count;
+            this.iconX = iconX;
+            this.iconY = iconY;
+            this.iconWidth = iconWidth;
+            this.iconHeight = iconHeight;
+        }
+    }
+
+    /**
+     * Collects the markers in view and packs their icons row by row into one bitmap. Icons are
+     * only referenced until {@link #build()}, which copies them into the atlas.
+     */
+    public static class Builder {
+        private final CameraPosition mCamera;
+        private final int mMaxIcons;
+        private final List<LatLng> mPositions = new ArrayList<LatLng>();
+        private final List<Integer> mCounts = new ArrayList<Integer>();
+        private final List<Bitmap> mIcons = new ArrayList<Bitmap>();
+        private int mIconCount;
+
+        public Builder(CameraPosition camera, int maxIcons) {
+            mCamera = camera;
+            mMaxIcons = maxIcons;
+        }
+
+        // the icon may be null, the marker is drawn with the default pin then
+        public Builder add(LatLng position, int count, Bitmap icon) {
+            if (icon != null && (mIconCount == mMaxIcons || icon.getWidth() > ATLAS_WIDTH)) {
+                icon = null;
+            }
+            if (icon != null) {
+                mIconCount++;
+            }
+            mPositions.add(position);
+            mCounts.add(count);
+            mIcons.add(icon);
+            return this;
+        }
+
+        public StartupSnapshot build() {
+            List<Marker> markers = new ArrayList<Marker>(mPositions.size());
+            List<Rect> areas = new ArrayList<Rect>(mPositions.size());
+            int x = 0;
+            int y = 0;
+            int rowHeight = 0;
+            int width = 0;
+            for (Bitmap icon : mIcons) {
+                if (icon == null) {
+                    areas.add(null);
+                    continue;
+                }
+                if (x + icon.getWidth() > ATLAS_WIDTH) {
+                    x = 0;
+                    y += rowHeight;
+                    rowHeight = 0;
+                }
+                areas.add(new Rect(x, y, x + icon.getWidth(), y + icon.getHeight()));
+                x += icon.getWidth();
+                width = Math.max(width, x);
+                rowHeight = Math.max(rowHeight, icon.getHeight());
+            }
+            int height = y + rowHeight;
+
+            Bitmap atlas = null;
+            Canvas canvas = null;
+            if (width > 0 && height > 0) {
+                atlas = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                canvas = new Canvas(atlas);
+            }
+            for (int i = 0; i < mPositions.size(); i++) {
+                Rect area = areas.get(i);
+                if (area == null) {
+                    markers.add(new Marker(mPositions.get(i), mCounts.get(i),
+                            NO_ICON, NO_ICON, 0, 0));
+                    continue;
+                }
+                canvas.drawBitmap(mIcons.get(i), area.left, area.top, null);
+                markers.add(new Marker(mPositions.get(i), mCounts.get(i),
+                        area.left, area.top, area.width(), area.height()));
+            }
+            return new StartupSnapshot(mCamera, markers, atlas);
+        }
+    }
+}
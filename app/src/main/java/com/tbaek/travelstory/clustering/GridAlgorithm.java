@@ -0,0 +1,187 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.clustering;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.clustering.Cluster;
+import com.google.maps.android.clustering.ClusterItem;
+import com.google.maps.android.clustering.algo.Algorithm;
+import com.tbaek.travelstory.metrics.Histogram;
+import com.tbaek.travelstory.metrics.Metrics;
+import com.tbaek.travelstory.metrics.Timer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link Algorithm} backed by a {@link GridIndex}, for {@code ClusterManager.setAlgorithm()}.
+ * Above the deepest level of the index every item is its own cluster.
+ */
+public class GridAlgorithm<T extends ClusterItem> implements Algorithm<T> {
+    private static final Timer CLUSTER_TIMER = Metrics.timer("cluster.getClusters");
+    private static final Histogram CLUSTER_COUNT = Metrics.histogram("cluster.count");
+
+    private final GridIndex<T> mIndex;
+
+    public GridAlgorithm() {
+        this(new GridIndex<T>());
+    }
+
+    public GridAlgorithm(GridIndex<T> index) {
+        mIndex = index;
+    }
+
+    @Override
+    public void addItem(T item) {
+        LatLng position = item.getPosition();
+        mIndex.add(item, position.latitude, position.longitude);
+    }
+
+    @Override
+    public void addItems(Collection<T> items) {
+        for (T item : items) {
+            addItem(item);
+        }
+    }
+
+    @Override
+    public void clearItems() {
+        mIndex.clear();
+    }
+
+    @Override
+    public void removeItem(T item) {
+        mIndex.remove(item);
+    }
+
+    @Override
+    public Set<? extends Cluster<T>> getClusters(double zoom) {
+        long start = CLUSTER_TIMER.start();
+        try {
+            Set<? extends Cluster<T>> clusters = cluster((int) zoom);
+            CLUSTER_COUNT.record(clusters.size());
+            return clusters;
+        } finally {
+            CLUSTER_TIMER.stop(start);
+        }
+    }
+
+    private Set<? extends Cluster<T>> cluster(int discreteZoom) {
+        Set<Cluster<T>> clusters = new HashSet<Cluster<T>>();
+        if (discreteZoom > mIndex.getMaxZoom()) {
+            for (T item : mIndex.getItems()) {
+                clusters.add(new SingleItemCluster<T>(item));
+            }
+            return clusters;
+        }
+        // hold the index still while the clusters take their snapshot of the cells
+        synchronized (mIndex) {
+            for (GridIndex.Cell<T> cell : mIndex.getCells(discreteZoom)) {
+                clusters.add(new CellCluster<T>(mIndex, cell));
+            }
+        }
+        return clusters;
+    }
+
+    @Override
+    public Collection<T> getItems() {
+        return mIndex.getItems();
+    }
+
+    private static class CellCluster<T> implements Cluster<T> {
+        private final GridIndex<T> mIndex;
+        private final GridIndex.Cell<T> mCell;
+        private final LatLng mPosition;
+        // the cell changes in place, the cluster keeps what it looked like when it was made
+        private final int mSize;
+        private Collection<T> mItems;
+
+        CellCluster(GridIndex<T> index, GridIndex.Cell<T> cell) {
+            mIndex = index;
+            mCell = cell;
+            mPosition = new LatLng(cell.getLatitude(), cell.getLongitude());
+            mSize = cell.getCount();
+        }
+
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
+
+        // only gathered when the renderer or a click handler asks for them
+        @Override
+        public synchronized Collection<T> getItems() {
+            if (mItems == null) {
+                mItems = mIndex.getItems(mCell);
+            }
+            return mItems;
+        }
+
+        @Override
+        public int getSize() {
+            return mSize;
+        }
+
+        // the renderer keeps markers of clusters that are equal across passes
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CellCluster)) return false;
+            CellCluster<?> other = (CellCluster<?>) o;
+            return getSize() == other.getSize() && mPosition.equals(other.mPosition);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mPosition.hashCode() + getSize();
+        }
+    }
+
+    private static class SingleItemCluster<T extends ClusterItem> implements Cluster<T> {
+        private final T mItem;
+
+        SingleItemCluster(T item) {
+            mItem = item;
+        }
+
+        @Override
+        public LatLng getPosition() {
+            return mItem.getPosition();
+        }
+
+        @Override
+        public Collection<T> getItems() {
+            return Collections.singletonList(mItem);
+        }
+
+        @Override
+        public int getSize() {
+            return 1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SingleItemCluster && mItem.equals(((SingleItemCluster<?>) o).mItem);
+        }
+
+        @Override
+        public int hashCode() {
+            return mItem.hashCode();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.clustering;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical grid of clusters, one level per zoom level. Plain Java so it can be tested and
+ * benchmarked on the JVM.
+ *
+ * Positions are projected to Web Mercator world coordinates in [0, 1). At zoom z the world is
+ * split into 2^(z + CELL_SHIFT) cells per side, which makes a cell 256 >> CELL_SHIFT pixels
+ * wide on screen. The levels form a quad tree: every cell knows its item count and centroid
+ * and links to the four cells it splits into one zoom level deeper. A cell holding a single
+ * item is not split any further, it stands for that item on every deeper level.
+ *
+ * All levels are precomputed, so clustering for a camera position is a walk down the tree to
+ * its zoom level, pruned to the visible bounds, instead of a pass over all items. Adding or
+ * removing an item only updates the cells on its path, one per level.
+ */
+public class GridIndex<T> {
+    public static final int DEFAULT_MAX_ZOOM = 16;
+    // 2 cells per 256px tile, i.e. clusters about 128px apart
+    static final int CELL_SHIFT = 1;
+
+    private final int mMaxZoom;
+    private final Map<T, Entry<T>> mEntries = new HashMap<T, Entry<T>>();
+    private Cell<T> mRoot = newRoot();
+
+    public GridIndex() {
+        this(DEFAULT_MAX_ZOOM);
+    }
+
+    public GridIndex(int maxZoom) {
+        mMaxZoom = maxZoom;
+    }
+
+    public int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    // an item that is already in the index is moved to the new position
+    public synchronized void add(T item, double latitude, double longitude) {
+        Entry<T> entry = new Entry<T>(item, projectX(longitude), projectY(latitude));
+        Entry<T> previous = mEntries.put(item, entry);
+        if (previous != null) {
+            delete(previous);
+        }
+        insert(entry);
+    }
+
+    public synchronized boolean remove(T item) {
+        Entry<T> entry = mEntries.remove(item);
+        if (entry == null) {
+            return false;
+        }
+        delete(entry);
+        return true;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mRoot = newRoot();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized List<T> getItems() {
+        return new ArrayList<T>(mEntries.keySet());
+    }
+
+    // the items below a cell as they are now, cells change in place when items come and go
+    public synchronized List<T> getItems(Cell<T> cell) {
+        List<T> items = new ArrayList<T>(cell.count);
+        cell.collectItems(items);
+        return items;
+    }
+
+    // every cell at the zoom level, zoom is clamped to [0, maxZoom]
+    public synchronized List<Cell<T>> getCells(int zoom) {
+        return getCells(zoom, -90, -180, 90, 180);
+    }
+
+    /**
+     * Cells at the zoom level whose extent intersects the bounds. west may be greater than east
+     * for bounds crossing the antimeridian.
+     */
+    public synchronized List<Cell<T>> getCells(int zoom, double south, double west,
+                                               double north, double east) {
+        List<Cell<T>> cells = new ArrayList<Cell<T>>();
+        if (mRoot.count == 0) {
+            return cells;
+        }
+        Query query = new Query(clampZoom(zoom), projectX(west), projectY(north),
+                projectX(east), projectY(south), west > east);
+        collect(mRoot, query, cells);
+        return cells;
+    }
+
+    private void collect(Cell<T> cell, Query query, List<Cell<T>> out) {
+        double size = 1.0 / (1 << (cell.level + CELL_SHIFT));
+        double left = cell.x * size;
+        double top = cell.y * size;
+        if (!query.intersects(left, top, left + size, top + size)) {
+            return;
+        }
+        if (cell.entry != null) {
+            // a single item cell may be far larger than the zoom level, test the item itself
+            if (query.intersects(cell.entry.x, cell.entry.y, cell.entry.x, cell.entry.y)) {
+                out.add(cell);
+            }
+            return;
+        }
+        if (cell.level == query.zoom || cell.children == null) {
+            out.add(cell);
+            return;
+        }
+        for (Cell<T> child : cell.children) {
+            if (child != null) {
+                collect(child, query, out);
+            }
+        }
+    }
+
+    private int clampZoom(int zoom) {
+        return Math.max(0, Math.min(mMaxZoom, zoom));
+    }
+
+    // the root is the single cell one level above zoom 0 covering the whole world
+    private static <T> Cell<T> newRoot() {
+        return new Cell<T>(-1, 0, 0);
+    }
+
+    private void insert(Entry<T> entry) {
+        Cell<T> cell = mRoot;
+        while (true) {
+            cell.count++;
+            cell.sumX += entry.x;
+            cell.sumY += entry.y;
+            if (cell.count == 1) {
+                cell.entry = entry;
+                return;
+            }
+            if (cell.level == mMaxZoom) {
+                // deepest level, items that share a cell stay together
+                if (cell.entries == null) {
+                    cell.entries = new ArrayList<Entry<T>>(2);
+                    cell.entries.add(cell.entry);
+                    cell.entry = null;
+                }
+                cell.entries.add(entry);
+                return;
+            }
+            if (cell.entry != null) {
+                // a single item cell gets a second item, push the first one a level down
+                Entry<T> existing = cell.entry;
+                cell.entry = null;
+                cell.children = newChildren();
+                Cell<T> child = childFor(cell, existing);
+                child.count = 1;
+                child.sumX = existing.x;
+                child.sumY = existing.y;
+                child.entry = existing;
+            }
+            cell = childFor(cell, entry);
+        }
+    }
+
+    private void delete(Entry<T> entry) {
+        Cell<T> cell = mRoot;
+        while (true) {
+            cell.count--;
+            cell.sumX -= entry.x;
+            cell.sumY -= entry.y;
+            if (cell.count == 0) {
+                cell.entry = null;
+                cell.entries = null;
+                cell.children = null;
+                return;
+            }
+            if (cell.entries != null) {
+                cell.entries.remove(entry);
+                if (cell.entries.size() == 1) {
+                    cell.entry = cell.entries.get(0);
+                    cell.entries = null;
+                }
+                return;
+            }
+            Cell<T> child = childFor(cell, entry);
+            if (cell.count == 1) {
+                // one item left, the cell stands for it on every deeper level again
+                cell.entry = findOther(cell, entry);
+                cell.children = null;
+                resetSums(cell);
+                return;
+            }
+            if (child.count == 1) {
+                cell.children[quadrant(child)] = null;
+                return;
+            }
+            cell = child;
+        }
+    }
+
+    // the one item below the cell besides the entry being removed, the search only follows
+    // the paths of those two
+    private static <T> Entry<T> findOther(Cell<T> cell, Entry<T> removed) {
+        if (cell.entry != null) {
+            return cell.entry != removed ? cell.entry : null;
+        }
+        if (cell.entries != null) {
+            for (Entry<T> e : cell.entries) {
+                if (e != removed) return e;
+            }
+            return null;
+        }
+        for (Cell<T> child : cell.children) {
+            Entry<T> other = child != null ? findOther(child, removed) : null;
+            if (other != null) return other;
+        }
+        return null;
+    }
+
+    // sums drift with every subtraction, a single item cell takes its exact position back
+    private static <T> void resetSums(Cell<T> cell) {
+        cell.sumX = cell.entry.x;
+        cell.sumY = cell.entry.y;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Cell<T>[] newChildren() {
+        return (Cell<T>[]) new Cell[4];
+    }
+
+    private static <T> Cell<T> childFor(Cell<T> cell, Entry<T> entry) {
+        int level = cell.level + 1;
+        int side = 1 << (level + CELL_SHIFT);
+        int x = cellIndex(entry.x, side);
+        int y = cellIndex(entry.y, side);
+        Cell<T> child = cell.children[((y & 1) << 1) | (x & 1)];
+        if (child == null) {
+            child = new Cell<T>(level, x, y);
+            cell.children[((y & 1) << 1) | (x & 1)] = child;
+        }
+        return child;
+    }
+
+    private static int quadrant(Cell<?> cell) {
+        return ((cell.y & 1) << 1) | (cell.x & 1);
+    }
+
+    private static int cellIndex(double world, int side) {
+        return Math.max(0, Math.min(side - 1, (int) (world * side)));
+    }
+
+    // Web Mercator, the world is the unit square with the north-west corner at 0, 0
+    public static double projectX(double longitude) {
+        return longitude / 360 + 0.5;
+    }
+
+    public static double projectY(double latitude) {
+        double sin = Math.sin(Math.toRadians(latitude));
+        double y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        return Math.max(0, Math.min(1, y));
+    }
+
+    public static double unprojectLongitude(double x) {
+        return (x - 0.5) * 360;
+    }
+
+    public static double unprojectLatitude(double y) {
+        return 90 - Math.toDegrees(2 * Math.atan(Math.exp((y - 0.5) * 2 * Math.PI)));
+    }
+
+    private static class Query {
+        final int zoom;
+        final double minX;
+        final double minY;
+        final double maxX;
+        final double maxY;
+        // west of the antimeridian from minX, east of it up to maxX
+        final boolean wraps;
+
+        Query(int zoom, double minX, double minY, double maxX, double maxY, boolean wraps) {
+            this.zoom = zoom;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.wraps = wraps;
+        }
+
+        boolean intersects(double left, double top, double right, double bottom) {
+            if (top > maxY || bottom < minY) return false;
+            if (wraps) return right >= minX || left <= maxX;
+            return right >= minX && left <= maxX;
+        }
+    }
+
+    static class Entry<T> {
+        final T item;
+        final double x;
+        final double y;
+
+        Entry(T item, double x, double y) {
+            this.item = item;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * A cell of one level. The position is the centroid of every item below it.
+     */
+    public static class Cell<T> {
+        final int level;
+        final int x;
+        final int y;
+        int count;
+        double sumX;
+        double sumY;
+        // set while the cell holds exactly one item and has no children
+        Entry<T> entry;
+        // items sharing a cell on the deepest level
+        List<Entry<T>> entries;
+        Cell<T>[] children;
+
+        Cell(int level, int x, int y) {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getLatitude() {
+            return unprojectLatitude(sumY / count);
+        }
+
+        public double getLongitude() {
+            return unprojectLongitude(sumX / count);
+        }
+
+        void collectItems(Collection<? super T> out) {
+            if (entry != null) {
+                out.add(entry.item);
+            }
+            if (entries != null) {
+                for (Entry<T> e : entries) {
+                    out.add(e.item);
+                }
+            }
+            if (children != null) {
+                for (Cell<T> child : children) {
+                    if (child != null) {
+                        child.collectItems(out);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.tbaek.travelstory.database;
+
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+// One row per distinct stored image: its content hash, the ImageStore file with the bytes and
+// the number of image rows that point to it. Several place entries of the same photo share a
+// single file, which is only deleted together with the last of them.
+//
+// The counts are only consistent within the transaction that also changes the image rows.
+// The table is created by the version 7 migration, a change of it needs a migration of its own.
+class BlobTable {
+    static final String TABLE = "blobs";
+
+    static final String COLUMN_HASH      = "hash";
+    static final String COLUMN_FILE      = "file";
+    static final String COLUMN_REF_COUNT = "ref_count";
+
+    private BlobTable() {
+    }
+
+    // the file holding the content, null if nothing with that hash is stored
+    static String getFile(SQLiteDatabase db, String hash) {
+        Cursor res = db.rawQuery("SELECT " + COLUMN_FILE + " FROM " + TABLE +
+                " WHERE " + COLUMN_HASH + "=?", new String[] { hash });
+        try {
+            return res.moveToFirst() ? res.getString(0) : null;
+        } finally {
+            res.close();
+        }
+    }
+
+    // counts one more row for the content, file is recorded if it is the first one
+    static void retain(SQLiteDatabase db, String hash, String file) {
+        db.execSQL("UPDATE " + TABLE + " SET " + COLUMN_REF_COUNT + " = " + COLUMN_REF_COUNT +
+                " + 1 WHERE " + COLUMN_HASH + "=?", new Object[] { hash });
+        if (getFile(db, hash) == null) {
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_HASH, hash);
+            cv.put(COLUMN_FILE, file);
+            cv.put(COLUMN_REF_COUNT, 1);
+            db.insertOrThrow(TABLE, null, cv);
+        }
+    }
+
+    // counts one row less, returns the file once no row points to it anymore
+    static String release(SQLiteDatabase db, String hash) {
+        Cursor res = db.rawQuery("SELECT " + COLUMN_FILE + ", " + COLUMN_REF_COUNT + " FROM " +
+                TABLE + " WHERE " + COLUMN_HASH + "=?", new String[] { hash });
+        String file;
+        int refCount;
+        try {
+            if (!res.moveToFirst()) return null;
+            file = res.getString(0);
+            refCount = res.getInt(1);
+        } finally {
+            res.close();
+        }
+        if (refCount > 1) {
+            db.execSQL("UPDATE " + TABLE + " SET " + COLUMN_REF_COUNT + " = " +
+                    COLUMN_REF_COUNT + " - 1 WHERE " + COLUMN_HASH + "=?", new Object[] { hash });
+            return null;
+        }
+        db.delete(TABLE, COLUMN_HASH + "=?", new String[] { hash });
+        return file;
+    }
+
+    // ref count of the content, 0 if it is not stored
+    static int getRefCount(SQLiteDatabase db, String hash) {
+        Cursor res = db.rawQuery("SELECT " + COLUMN_REF_COUNT + " FROM " + TABLE +
+                " WHERE " + COLUMN_HASH + "=?", new String[] { hash });
+        try {
+            return res.moveToFirst() ? res.getInt(0) : 0;
+        } finally {
+            res.close();
+        }
+    }
+}
@@ -4,80 +4,635 @@ package com.tbaek.travelstory.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.tbaek.travelstory.R;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
+    private static final String TAG = "DatabaseHelper";
+
     // Database Version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 8;
 
     // Database Name
     private static final String DATABASE_NAME = "travel_story_db";
 
+    // Directory of the ImageStore that belongs to the default database
+    private static final String IMAGE_DIRECTORY = "images";
+
     // Table Names
-    private static final String DB_TABLE = "table_images";
-
-    // column names
-    private static final String COLUMN_ID         = "id";
-    private static final String COLUMN_PLACE_NAME = "place_name";
-    private static final String COLUMN_LAT        = "latitude";
-    private static final String COLUMN_LNG        = "longitude";
-    private static final String COLUMN_IMAGE      = "image_data";
-
-    // Table create statement
-    private static final String CREATE_TABLE = "CREATE TABLE " + DB_TABLE + "("+
-            COLUMN_ID         + " TEXT,"   +
-            COLUMN_PLACE_NAME + " TEXT,"   +
-            COLUMN_LAT        + " DOUBLE," +
-            COLUMN_LNG        + " DOUBLE," +
-            COLUMN_IMAGE + " BLOB);";
+    static final String DB_TABLE = "table_images";
+
+    // column names, public for callers that build their own Projection
+    public static final String COLUMN_ID         = "id";
+    public static final String COLUMN_PLACE_NAME = "place_name";
+    public static final String COLUMN_LAT        = "latitude";
+    public static final String COLUMN_LNG        = "longitude";
+    static final String COLUMN_IMAGE_FILE        = "image_file";
+    public static final String COLUMN_THUMBNAIL  = "thumbnail_data";
+    public static final String COLUMN_DATE_TAKEN = "date_taken";
+    public static final String COLUMN_CODEC      = "codec";
+    static final String COLUMN_CONTENT_HASH      = "content_hash";
+
+    // rows committed per transaction by addEntries() unless the caller asks otherwise
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    // rows per page of getAllImages() unless the caller asks otherwise
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    // alias of the pagination key in page queries
+    private static final String PAGE_KEY = "page_key";
+
+    // matches of searchImages() unless the caller asks otherwise
+    public static final int DEFAULT_SEARCH_LIMIT = 1000;
+
+    private final Context mContext;
+    private final ImageStore mImageStore;
+    private final Migrations mMigrations;
+
+    // compiled once per open database, see close()
+    private SQLiteStatement mDeleteStatement;
+    private SQLiteStatement mImageFileStatement;
+
+    // Files released by the transactions of a thread, deleted once the outermost one commits.
+    // A DatabaseWriter batch that rolls back brings the rows back, their files have to stay.
+    private final ThreadLocal<List<String>> mReleasedFiles = new ThreadLocal<List<String>>() {
+        @Override
+        protected List<String> initialValue() {
+            return new ArrayList<String>();
+        }
+    };
+
+    public interface ProgressListener {
+        // called after every committed batch
+        void onProgress(int done, int total);
+    }
 
     public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // lets tests and benchmarks work on their own database file
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        // readers keep going while the DatabaseWriter commits
+        setWriteAheadLoggingEnabled(true);
+        mContext = context;
+        mImageStore = new ImageStore(context,
+                DATABASE_NAME.equals(name) ? IMAGE_DIRECTORY : IMAGE_DIRECTORY + "_" + name);
+        mMigrations = new Migrations(context, mImageStore);
+        if (mMigrations.getLatestVersion() != DATABASE_VERSION) {
+            throw new IllegalStateException("DATABASE_VERSION does not match the last migration");
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        // creating table
-        db.execSQL(CREATE_TABLE);
+        // creating the first version of the table, then migrating it like any other database
+        db.execSQL(Migrations.CREATE_TABLE_V1);
+        mMigrations.migrate(db, 1, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // on upgrade drop older tables
-        db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
+        mMigrations.migrate(db, oldVersion, newVersion);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mDeleteStatement != null) {
+            mDeleteStatement.close();
+            mDeleteStatement = null;
+        }
+        if (mImageFileStatement != null) {
+            mImageFileStatement.close();
+            mImageFileStatement = null;
+        }
+        super.close();
+    }
 
-        // create new table
-        onCreate(db);
+    /**
+     * Deletes the image files no row points to, left behind by a crash, a failed upgrade or a
+     * rolled back batch. It lists the whole image directory and reads the file of every row,
+     * so it runs as a background task, see {@link DatabaseWriter#deleteOrphanedFiles()}. Files
+     * stored ahead of their rows by an import that is still running would be deleted as well.
+     */
+    public int deleteOrphanedFiles() {
+        int deleted = mImageStore.deleteOrphans(getImageFiles(getReadableDatabase()));
+        if (deleted > 0) {
+            Log.i(TAG, "Removed " + deleted + " orphaned image files");
+        }
+        return deleted;
     }
 
+    private static Set<String> getImageFiles(SQLiteDatabase db) {
+        Set<String> files = new HashSet<String>();
+        Cursor res = db.rawQuery("SELECT " + COLUMN_IMAGE_FILE + " FROM " + DB_TABLE +
+                " WHERE " + COLUMN_IMAGE_FILE + " IS NOT NULL UNION SELECT " +
+                BlobTable.COLUMN_FILE + " FROM " + BlobTable.TABLE, null);
+        try {
+            while (res.moveToNext()) {
+                files.add(res.getString(0));
+            }
+        } finally {
+            res.close();
+        }
+        return files;
+    }
+
+    // thumbnails are rendered as map markers, so they share the marker dimension
+    public int getThumbnailSize() {
+        return mContext.getResources().getDimensionPixelSize(R.dimen.custom_profile_image);
+    }
+
+    /**
+     * Ends a transaction on this database. When it was the outermost one of the thread, the
+     * files released inside of it are deleted if it committed, or kept if it rolled back.
+     * Every transaction that may release files ends through here, including the ones the
+     * {@link DatabaseWriter} wraps around its batches.
+     */
+    void endTransaction(SQLiteDatabase db, boolean committed) {
+        db.endTransaction();
+        if (db.inTransaction()) return;
+        List<String> files = mReleasedFiles.get();
+        if (committed) {
+            for (String file : files) {
+                mImageStore.delete(file);
+            }
+        }
+        files.clear();
+    }
+
+    // deletes the file once the current transaction commits, right away outside of one
+    private void deleteAfterCommit(SQLiteDatabase db, String file) {
+        if (file == null) return;
+        if (db.inTransaction()) {
+            mReleasedFiles.get().add(file);
+        } else {
+            mImageStore.delete(file);
+        }
+    }
+
+    // the files are deleted right away, the DatabaseWriter runs this on its own
     public void clearAllImages() {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.execSQL("DELETE FROM "+ DB_TABLE);
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM "+ DB_TABLE);
+            db.execSQL("DELETE FROM " + BlobTable.TABLE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mImageStore.deleteAll();
+    }
+
+    /**
+     * Every image, fetched one page at a time in the order of {@code key}. Only the current
+     * page is held in memory, so this is safe to run over the whole table.
+     */
+    public <T> Iterable<T> getAllImages(final Projection<T> projection, final PageKey key,
+                                        final int pageSize) {
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new PageIterator<T>(DatabaseHelper.this, projection, key, pageSize);
+            }
+        };
+    }
+
+    // pass the nextKey of the previous page as afterKey, or null for the first page
+    public <T> Page<T> getImagesPage(Projection<T> projection, PageKey key, String afterKey,
+                                     int pageSize) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String limit = String.valueOf(Math.max(1, pageSize));
+        Cursor res = db.rawQuery("SELECT " + key.column + " AS " + PAGE_KEY + ", " +
+                projection.getSelection() + " FROM " + DB_TABLE +
+                (afterKey != null ? " WHERE " + key.after() : "") +
+                " ORDER BY " + key.column + " LIMIT ?",
+                afterKey != null ? new String[] { afterKey, limit } : new String[] { limit });
+        try {
+            List<T> rows = new ArrayList<T>(res.getCount());
+            String lastKey = null;
+            int pageKey = res.getColumnIndexOrThrow(PAGE_KEY);
+            while (res.moveToNext()) {
+                rows.add(projection.map(res));
+                lastKey = res.getString(pageKey);
+            }
+            return new Page<T>(rows, rows.size() < pageSize ? null : lastKey);
+        } finally {
+            res.close();
+        }
+    }
+
+    // The images inside the bounds, mapped while the caller reads them. The bounds are always
+    // filtered on, also zoomed out all the way; pass bounds up to just short of 180 for the
+    // whole width, LatLng wraps 180 itself to -180.
+    public <T> MappedCursor<T> getImagesInBounds(LatLngBounds bounds, Projection<T> projection) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        double west = bounds.southwest.longitude;
+        double east = bounds.northeast.longitude;
+        // Bounds crossing the antimeridian have west greater than east. They are the range from
+        // west up to 180 and the one from -180 up to east.
+        String lngClause = west <= east
+                ? COLUMN_LNG + " BETWEEN ? AND ?"
+                : "(" + COLUMN_LNG + " >= ? OR " + COLUMN_LNG + " <= ?)";
+        return new MappedCursor<T>(db.rawQuery("SELECT " + projection.getSelection() +
+                " FROM " + DB_TABLE +
+                " WHERE " + COLUMN_LAT + " BETWEEN ? AND ? AND " + lngClause,
+                new String[] {
+                        String.valueOf(bounds.southwest.latitude),
+                        String.valueOf(bounds.northeast.latitude),
+                        String.valueOf(west),
+                        String.valueOf(east) }), projection);
+    }
+
+    // At most limit images with a word in their place name starting with every word of the
+    // query, in no particular order. An empty list if the query has no words to search for.
+    public <T> List<T> searchImages(String query, Projection<T> projection, int limit) {
+        String expression = SearchIndex.toMatchExpression(query);
+        if (expression == null) {
+            return new ArrayList<T>();
+        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        // the limit goes into the index query, matches past it are never looked up
+        Cursor res = db.rawQuery("SELECT " + projection.getSelection() + " FROM " + DB_TABLE +
+                " WHERE rowid IN (SELECT docid FROM " + SearchIndex.TABLE + " WHERE " +
+                SearchIndex.TABLE + " MATCH ? LIMIT ?)",
+                new String[] { expression, String.valueOf(Math.max(1, limit)) });
+        try {
+            List<T> rows = new ArrayList<T>(res.getCount());
+            while (res.moveToNext()) {
+                rows.add(projection.map(res));
+            }
+            return rows;
+        } finally {
+            res.close();
+        }
+    }
+
+    // full-resolution bytes, only read when a single photo is opened
+    public byte[] getImageData(String id) throws IOException {
+        String file = getImageFile(id);
+        return file == null ? null : mImageStore.read(file);
+    }
+
+    // streaming access to the full-resolution bytes, e.g. for BitmapFactory.decodeStream()
+    public InputStream openImage(String id) throws IOException {
+        String file = getImageFile(id);
+        return file == null ? null : mImageStore.open(file);
     }
 
-    public Cursor getAllImages() {
+    public byte[] getThumbnail(String id) {
         SQLiteDatabase db = this.getReadableDatabase();
-        Cursor res = db.rawQuery( "SELECT * FROM " + DB_TABLE, null );
-        return res;
+        Cursor res = db.rawQuery("SELECT " + COLUMN_THUMBNAIL + " FROM " + DB_TABLE +
+                " WHERE " + COLUMN_ID + "=?", new String[] { id });
+        try {
+            return res.moveToFirst() ? res.getBlob(0) : null;
+        } finally {
+            res.close();
+        }
+    }
+
+    private synchronized String getImageFile(String id) {
+        if (mImageFileStatement == null) {
+            mImageFileStatement = getReadableDatabase().compileStatement("SELECT " +
+                    COLUMN_IMAGE_FILE + " FROM " + DB_TABLE + " WHERE " + COLUMN_ID + "=?");
+        }
+        mImageFileStatement.bindString(1, id);
+        try {
+            return mImageFileStatement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            // no such row
+            return null;
+        }
     }
 
     public void addEntry(String id, String place,
-                         Double lat, Double lng, byte[] image) throws SQLiteException {
+                         Double lat, Double lng, byte[] image, byte[] thumbnail) throws SQLiteException {
+        addEntry(id, place, lat, lng, ImageCodec.PNG, image, thumbnail);
+    }
+
+    // codec is the name of the ImageCodec that encoded the image
+    public void addEntry(String id, String place, Double lat, Double lng,
+                         String codec, byte[] image, byte[] thumbnail) throws SQLiteException {
+        String hash = ContentHash.of(image);
+        SQLiteDatabase db = this.getWritableDatabase();
+        boolean committed = false;
+        db.beginTransaction();
+        try {
+            // the same bytes are stored already, the new row points to them
+            String file = BlobTable.getFile(db, hash);
+            String written = null;
+            if (file == null) {
+                try {
+                    file = written = mImageStore.write(id, image);
+                } catch (IOException e) {
+                    throw new SQLiteException("Could not store image " + id, e);
+                }
+            }
+            insertEntry(db, id, place, lat, lng, codec, file, written, thumbnail, hash);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            endTransaction(db, committed);
+        }
+    }
+
+    // stores the picked file as it is; a FileChannel is copied by the kernel without
+    // passing through the Java heap
+    public void addEntry(String id, String place, Double lat, Double lng,
+                         ReadableByteChannel original, byte[] thumbnail) throws SQLiteException {
         SQLiteDatabase db = this.getWritableDatabase();
+        String written;
+        String hash;
+        try {
+            written = mImageStore.write(id, original);
+        } catch (IOException e) {
+            throw new SQLiteException("Could not store image " + id, e);
+        }
+        try {
+            hash = mImageStore.hash(written);
+        } catch (IOException e) {
+            deleteAfterCommit(db, written);
+            throw new SQLiteException("Could not hash image " + id, e);
+        }
+        boolean committed = false;
+        db.beginTransaction();
+        try {
+            String file = BlobTable.getFile(db, hash);
+            if (file != null) {
+                // a copy of something stored before, keep the first one
+                deleteAfterCommit(db, written);
+                written = null;
+            } else {
+                file = written;
+            }
+            insertEntry(db, id, place, lat, lng, ImageCodec.ORIGINAL, file, written, thumbnail,
+                    hash);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            endTransaction(db, committed);
+        }
+    }
+
+    /**
+     * Writes the image bytes ahead of the row, e.g. on an import worker while the rows are
+     * inserted later in one batch through {@link ImageRecord#forStoredImage}. Files that never
+     * get a row are removed with {@link #discardImage(String)}, or at the latest by
+     * {@link #deleteOrphanedFiles()}.
+     */
+    public String storeImage(String id, byte[] image) throws IOException {
+        return mImageStore.write(id, image);
+    }
+
+    public String storeImage(String id, ReadableByteChannel original) throws IOException {
+        return mImageStore.write(id, original);
+    }
+
+    public void discardImage(String file) {
+        mImageStore.delete(file);
+    }
+
+    // written is the file if this insert created it, it is removed again when the insert fails
+    private void insertEntry(SQLiteDatabase db, String id, String place, Double lat, Double lng,
+                             String codec, String file, String written, byte[] thumbnail,
+                             String hash) {
         ContentValues cv = new ContentValues();
         cv.put(COLUMN_ID,         id);
         cv.put(COLUMN_PLACE_NAME, place);
         cv.put(COLUMN_LAT,        lat);
         cv.put(COLUMN_LNG,        lng);
-        cv.put(COLUMN_IMAGE, image);
-        db.insert(DB_TABLE, null, cv );
+        cv.put(COLUMN_IMAGE_FILE, file);
+        cv.put(COLUMN_THUMBNAIL,  thumbnail);
+        cv.put(COLUMN_CODEC,      codec);
+        cv.put(COLUMN_CONTENT_HASH, hash);
+        if (db.insert(DB_TABLE, null, cv ) == -1) {
+            deleteAfterCommit(db, written);
+        } else {
+            BlobTable.retain(db, hash, file);
+        }
+    }
+
+    /**
+     * A stored image with the given {@link ContentHash}, with its thumbnail, or null if that
+     * content is not stored. An import that finds one adds its row with
+     * {@link ImageRecord#forStoredContent} instead of decoding and storing the photo again.
+     */
+    public ImageMetadata findByContentHash(String hash) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Projection<ImageMetadata> projection = Projection.METADATA_WITH_THUMBNAIL;
+        Cursor res = db.rawQuery("SELECT " + projection.getSelection() + " FROM " + DB_TABLE +
+                " WHERE " + COLUMN_CONTENT_HASH + "=? LIMIT 1", new String[] { hash });
+        try {
+            return res.moveToFirst() ? projection.map(res) : null;
+        } finally {
+            res.close();
+        }
+    }
+
+    // number of rows sharing the stored content, 0 if it is not stored
+    int getContentRefCount(String hash) {
+        return BlobTable.getRefCount(getReadableDatabase(), hash);
+    }
+
+    // whether there is a row for the id
+    boolean containsImage(String id) {
+        return DatabaseUtils.longForQuery(getReadableDatabase(), "SELECT count(*) FROM " +
+                DB_TABLE + " WHERE " + COLUMN_ID + "=?", new String[] { id }) > 0;
+    }
+
+    /**
+     * Writes the library to an archive, see {@link LibraryArchive}. Runs on the calling thread
+     * until every row is written, interrupting it stops the export.
+     */
+    public LibraryArchive.Result exportLibrary(FileChannel out, ProgressListener listener)
+            throws IOException {
+        return newArchive().export(out, DEFAULT_PAGE_SIZE, listener);
+    }
+
+    // the restore goes through DatabaseWriter.restoreLibrary(), it commits on the writer
+    LibraryArchive newArchive() {
+        return new LibraryArchive(this, mImageStore, mContext.getCacheDir());
+    }
+
+    // capture time in milliseconds since the epoch, null if unknown or there is no such image
+    public Long getDateTaken(String id) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor res = db.rawQuery("SELECT " + COLUMN_DATE_TAKEN + " FROM " + DB_TABLE +
+                " WHERE " + COLUMN_ID + "=?", new String[] { id });
+        try {
+            return res.moveToFirst() && !res.isNull(0) ? res.getLong(0) : null;
+        } finally {
+            res.close();
+        }
+    }
+
+    // name of the ImageCodec the image was stored with, null if there is no such image
+    public String getImageCodec(String id) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor res = db.rawQuery("SELECT " + COLUMN_CODEC + " FROM " + DB_TABLE +
+                " WHERE " + COLUMN_ID + "=?", new String[] { id });
+        try {
+            return res.moveToFirst() ? res.getString(0) : null;
+        } finally {
+            res.close();
+        }
+    }
+
+    /**
+     * Inserts the records in transactions of {@code batchSize} rows through one compiled
+     * statement. The returned array holds the row id of every record, or -1 for the records
+     * that could not be stored.
+     */
+    public long[] addEntries(List<ImageRecord> records, int batchSize, ProgressListener listener) {
+        long[] rowIds = new long[records.size()];
+        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + DB_TABLE + " (" +
+                COLUMN_ID + ", " + COLUMN_PLACE_NAME + ", " + COLUMN_LAT + ", " + COLUMN_LNG + ", " +
+                COLUMN_IMAGE_FILE + ", " + COLUMN_THUMBNAIL + ", " + COLUMN_CODEC + ", " +
+                COLUMN_DATE_TAKEN + ", " + COLUMN_CONTENT_HASH + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        try {
+            int start = 0;
+            while (start < records.size()) {
+                int end = Math.min(records.size(), start + Math.max(1, batchSize));
+                boolean committed = false;
+                db.beginTransaction();
+                try {
+                    for (int i = start; i < end; i++) {
+                        rowIds[i] = insert(db, insert, records.get(i));
+                    }
+                    db.setTransactionSuccessful();
+                    committed = true;
+                } finally {
+                    endTransaction(db, committed);
+                }
+                start = end;
+                if (listener != null) {
+                    listener.onProgress(end, records.size());
+                }
+            }
+        } finally {
+            insert.close();
+        }
+        return rowIds;
+    }
+
+    // runs inside the batch transaction, so the blob counts change together with the rows
+    private long insert(SQLiteDatabase db, SQLiteStatement insert, ImageRecord record) {
+        String hash = record.contentHash;
+        if (hash == null && record.image != null) {
+            hash = ContentHash.of(record.image);
+        }
+        // the file this insert is responsible for, removed again if the row is not stored
+        String written = record.file;
+        String file = record.file;
+        try {
+            String stored = hash != null ? BlobTable.getFile(db, hash) : null;
+            if (stored != null) {
+                // the content is there already, a copy written for this record is not needed
+                if (written != null && !written.equals(stored)) {
+                    deleteAfterCommit(db, written);
+                }
+                written = null;
+                file = stored;
+            } else if (record.image != null) {
+                file = written = mImageStore.write(record.id, record.image);
+            } else if (file == null && hash != null) {
+                // the content was deleted since the import found it
+                Log.w(TAG, "Content of image " + record.id + " is not stored anymore");
+                return -1;
+            }
+            insert.clearBindings();
+            insert.bindString(1, record.id);
+            if (record.place != null) {
+                insert.bindString(2, record.place);
+            }
+            insert.bindDouble(3, record.latitude);
+            insert.bindDouble(4, record.longitude);
+            if (file != null) {
+                insert.bindString(5, file);
+            }
+            if (record.thumbnail != null) {
+                insert.bindBlob(6, record.thumbnail);
+            }
+            insert.bindString(7, record.codec);
+            if (record.dateTaken != null) {
+                insert.bindLong(8, record.dateTaken);
+            }
+            if (hash != null) {
+                insert.bindString(9, hash);
+            }
+            long rowId = insert.executeInsert();
+            if (rowId == -1) {
+                deleteAfterCommit(db, written);
+            } else if (hash != null) {
+                BlobTable.retain(db, hash, file);
+            }
+            return rowId;
+        } catch (IOException | SQLException e) {
+            Log.e(TAG, "Could not insert image " + record.id, e);
+            deleteAfterCommit(db, written);
+            return -1;
+        }
     }
 
+    // the file goes with the last row that shares its content
     public void deleteEntry(String id) {
         SQLiteDatabase db = this.getWritableDatabase();
-        db.execSQL("delete from "+ DB_TABLE +" where id='" + id + "'");
+        boolean committed = false;
+        db.beginTransaction();
+        try {
+            String file = null;
+            String hash = null;
+            Cursor res = db.rawQuery("SELECT " + COLUMN_IMAGE_FILE + ", " + COLUMN_CONTENT_HASH +
+                    " FROM " + DB_TABLE + " WHERE " + COLUMN_ID + "=?", new String[] { id });
+            try {
+                if (res.moveToFirst()) {
+                    file = res.getString(0);
+                    hash = res.getString(1);
+                }
+            } finally {
+                res.close();
+            }
+            int deleted;
+            synchronized (this) {
+                if (mDeleteStatement == null) {
+                    mDeleteStatement = db.compileStatement("DELETE FROM " +
+                            DB_TABLE + " WHERE " + COLUMN_ID + "=?");
+                }
+                mDeleteStatement.bindString(1, id);
+                deleted = mDeleteStatement.executeUpdateDelete();
+            }
+            if (deleted > 0) {
+                // rows from before content hashing own their file alone
+                deleteAfterCommit(db, hash != null ? BlobTable.release(db, hash) : file);
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            endTransaction(db, committed);
+        }
     }
 
 }
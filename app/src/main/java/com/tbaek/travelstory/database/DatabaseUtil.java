@@ -4,6 +4,7 @@ package com.tbaek.travelstory.database;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
 
 import java.io.ByteArrayOutputStream;
 
@@ -15,8 +16,18 @@ public class DatabaseUtil {
         return stream.toByteArray();
     }
 
+    // convert from bitmap to byte array with the codec the image is stored with
+    public static byte[] getBytes(Bitmap bitmap, ImageCodec codec) {
+        return codec.encode(bitmap);
+    }
+
     // convert from byte array to bitmap
     public static Bitmap getImage(byte[] image) {
         return BitmapFactory.decodeByteArray(image, 0, image.length);
     }
+
+    // center-crop the bitmap to a square marker-sized thumbnail
+    public static Bitmap getThumbnail(Bitmap bitmap, int size) {
+        return ThumbnailUtils.extractThumbnail(bitmap, size, size);
+    }
 }
@@ -0,0 +1,339 @@
+package com.tbaek.travelstory.database;
+
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.tbaek.travelstory.metrics.Histogram;
+import com.tbaek.travelstory.metrics.Metrics;
+import com.tbaek.travelstory.metrics.Timer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The single thread every write to the database goes through.
+ *
+ * Operations that queue up while a transaction is running are coalesced into the next one, so a
+ * burst of writes costs a single commit. If one operation of a batch fails, the batch is rolled
+ * back and its operations are retried one transaction each, so only the failing one reports
+ * an error. With write-ahead logging enabled readers keep going while the writer commits.
+ *
+ * A coalesced operation therefore must not depend on its own commits: a transaction it begins
+ * is nested into the batch and only commits with it, and it may run twice. Operations that
+ * commit in chunks of their own, like {@link DatabaseHelper#addEntries}, or whose side effects
+ * a rollback does not undo go through {@link #submitExclusive} instead. They run alone, in
+ * queue order, outside of any writer transaction and without a retry.
+ */
+public class DatabaseWriter {
+    private static final String TAG = "DatabaseWriter";
+
+    // upper bound on the operations sharing one transaction
+    private static final int MAX_BATCH_SIZE = 100;
+
+    public interface Operation<T> {
+        // runs on the writer thread, inside a transaction unless it was submitted exclusive
+        T run(DatabaseHelper db) throws Exception;
+    }
+
+    public interface Callback<T> {
+        // delivered on the main thread, result is null if the operation failed
+        void onComplete(T result, Exception error);
+    }
+
+    private static final Timer BATCH_TIMER = Metrics.timer("db.write.batch");
+    private static final Histogram BATCH_SIZE = Metrics.histogram("db.write.batchSize");
+    private static final Timer EXCLUSIVE_TIMER = Metrics.timer("db.write.exclusive");
+
+    private final DatabaseHelper mDb;
+    private final BlockingQueue<Task<?>> mQueue = new LinkedBlockingQueue<Task<?>>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Task<Void> mShutdown = new Task<Void>(null, null, false);
+    private final Thread mThread;
+    // Set by shutdown(), later tasks fail right away. Guarded by mQueue, so no task can be
+    // queued behind mShutdown and be left waiting once the loop is gone.
+    private boolean mClosed;
+
+    public DatabaseWriter(DatabaseHelper db) {
+        mDb = db;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public <T> Future<T> submit(Operation<T> operation) {
+        return submit(operation, null);
+    }
+
+    public <T> Future<T> submit(Operation<T> operation, Callback<T> callback) {
+        return enqueue(new Task<T>(operation, callback, false));
+    }
+
+    // for operations that manage their own transactions, see the class comment
+    public <T> Future<T> submitExclusive(Operation<T> operation, Callback<T> callback) {
+        return enqueue(new Task<T>(operation, callback, true));
+    }
+
+    private <T> Future<T> enqueue(Task<T> task) {
+        synchronized (mQueue) {
+            if (!mClosed) {
+                mQueue.add(task);
+                return task;
+            }
+        }
+        task.fail(new IllegalStateException("The writer has been shut down"));
+        return task;
+    }
+
+    public Future<Void> addEntry(final String id, final String place, final double lat,
+                                 final double lng, final byte[] image, final byte[] thumbnail) {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void run(DatabaseHelper db) {
+                db.addEntry(id, place, lat, lng, image, thumbnail);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> deleteEntry(String id) {
+        return deleteEntry(id, null);
+    }
+
+    public Future<Void> deleteEntry(final String id, Callback<Void> callback) {
+        return submit(new Operation<Void>() {
+            @Override
+            public Void run(DatabaseHelper db) {
+                db.deleteEntry(id);
+                return null;
+            }
+        }, callback);
+    }
+
+    // exclusive, a rolled back batch would not bring the files back
+    public Future<Void> clearAllImages() {
+        return submitExclusive(new Operation<Void>() {
+            @Override
+            public Void run(DatabaseHelper db) {
+                db.clearAllImages();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Restores the rows of an archive that are not in the database, and resumes an earlier try,
+     * see {@link LibraryArchive}. Runs on the calling thread and commits every batch of rows
+     * through this writer, so it must not be called on the writer thread.
+     */
+    public LibraryArchive.Result restoreLibrary(FileChannel in, int batchSize,
+                                                DatabaseHelper.ProgressListener listener)
+            throws IOException {
+        if (Thread.currentThread() == mThread) {
+            throw new IllegalStateException("The restore would wait for its own thread");
+        }
+        return mDb.newArchive().restore(in, this, batchSize, listener);
+    }
+
+    // exclusive, so it never sees a batch half way; it must not overlap with a running import
+    public Future<Integer> deleteOrphanedFiles() {
+        return submitExclusive(new Operation<Integer>() {
+            @Override
+            public Integer run(DatabaseHelper db) {
+                return db.deleteOrphanedFiles();
+            }
+        }, null);
+    }
+
+    // Finishes the queued writes, then closes the database on the writer thread. Anything
+    // submitted afterwards fails with an IllegalStateException.
+    public Future<Void> shutdown() {
+        synchronized (mQueue) {
+            if (!mClosed) {
+                mClosed = true;
+                mQueue.add(mShutdown);
+            }
+        }
+        return mShutdown;
+    }
+
+    private void loop() {
+        List<Task<?>> batch = new ArrayList<Task<?>>(MAX_BATCH_SIZE);
+        boolean shutdown = false;
+        while (!shutdown) {
+            try {
+                batch.add(mQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            mQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            shutdown = batch.remove(mShutdown);
+            runQueued(batch);
+            batch.clear();
+        }
+        // only left over if the thread was interrupted, nothing runs them anymore
+        synchronized (mQueue) {
+            mClosed = true;
+            mQueue.drainTo(batch);
+        }
+        for (Task<?> task : batch) {
+            if (task != mShutdown) {
+                task.fail(new IllegalStateException("The writer has been shut down"));
+            }
+        }
+        mDb.close();
+        mShutdown.complete(null);
+    }
+
+    // coalesces the operations between exclusive ones, keeping the order they were queued in
+    private void runQueued(List<Task<?>> tasks) {
+        int start = 0;
+        for (int i = 0; i < tasks.size(); i++) {
+            Task<?> task = tasks.get(i);
+            if (!task.exclusive) continue;
+            if (i > start) {
+                runBatch(tasks.subList(start, i));
+            }
+            runExclusive(task);
+            start = i + 1;
+        }
+        if (start < tasks.size()) {
+            runBatch(tasks.subList(start, tasks.size()));
+        }
+    }
+
+    private void runExclusive(Task<?> task) {
+        Object result;
+        long start = EXCLUSIVE_TIMER.start();
+        try {
+            result = task.operation.run(mDb);
+        } catch (Exception e) {
+            task.fail(e);
+            return;
+        } finally {
+            EXCLUSIVE_TIMER.stop(start);
+        }
+        complete(task, result);
+    }
+
+    private void runBatch(List<Task<?>> batch) {
+        BATCH_SIZE.record(batch.size());
+        long start = BATCH_TIMER.start();
+        try {
+            runBatchTransaction(batch);
+        } finally {
+            BATCH_TIMER.stop(start);
+        }
+    }
+
+    private void runBatchTransaction(List<Task<?>> batch) {
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        Object[] results = new Object[batch.size()];
+        boolean committed = false;
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                results[i] = batch.get(i).operation.run(mDb);
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } catch (Exception e) {
+            Log.w(TAG, "Batch of " + batch.size() + " failed, retrying one by one", e);
+        } finally {
+            // files the batch released are only deleted now that its rows are gone for good
+            mDb.endTransaction(db, committed);
+        }
+
+        if (committed) {
+            for (int i = 0; i < batch.size(); i++) {
+                complete(batch.get(i), results[i]);
+            }
+            return;
+        }
+        for (Task<?> task : batch) {
+            runSingle(db, task);
+        }
+    }
+
+    private void runSingle(SQLiteDatabase db, Task<?> task) {
+        Object result;
+        boolean committed = false;
+        db.beginTransactionNonExclusive();
+        try {
+            result = task.operation.run(mDb);
+            db.setTransactionSuccessful();
+            committed = true;
+        } catch (Exception e) {
+            task.fail(e);
+            return;
+        } finally {
+            mDb.endTransaction(db, committed);
+        }
+        complete(task, result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void complete(Task<T> task, Object result) {
+        task.complete((T) result);
+    }
+
+    private class Task<T> extends FutureTask<T> {
+        final Operation<T> operation;
+        final boolean exclusive;
+        private final Callback<T> mCallback;
+
+        Task(Operation<T> operation, Callback<T> callback, boolean exclusive) {
+            // never run as a FutureTask, the writer completes it once the transaction commits
+            super(new Callable<T>() {
+                @Override
+                public T call() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+            this.operation = operation;
+            this.exclusive = exclusive;
+            mCallback = callback;
+        }
+
+        void complete(T result) {
+            set(result);
+        }
+
+        void fail(Exception error) {
+            setException(error);
+        }
+
+        @Override
+        protected void done() {
+            if (mCallback == null) return;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mCallback.onComplete(get(), null);
+                    } catch (ExecutionException e) {
+                        Exception cause = e.getCause() instanceof Exception
+                                ? (Exception) e.getCause() : e;
+                        mCallback.onComplete(null, cause);
+                    } catch (Exception e) {
+                        mCallback.onComplete(null, e);
+                    }
+                }
+            });
+        }
+    }
+}
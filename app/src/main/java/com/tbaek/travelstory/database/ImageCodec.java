@@ -0,0 +1,83 @@
+package com.tbaek.travelstory.database;
+
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+import java.io.ByteArrayOutputStream;
+
+// How the full-resolution image is turned into the bytes kept in the ImageStore. The name is
+// stored with every row, so rows written by different codecs can live side by side.
+public class ImageCodec {
+    public static final String PNG      = "png";
+    public static final String JPEG     = "jpeg";
+    public static final String WEBP     = "webp";
+    // the bytes of the picked file, stored untouched
+    public static final String ORIGINAL = "original";
+
+    // lowest quality the byte budget may push the lossy codecs down to
+    private static final int MIN_QUALITY  = 40;
+    private static final int QUALITY_STEP = 10;
+
+    private final String mName;
+    private final CompressFormat mFormat;
+    private final int mQuality;
+    private final int mMaxBytes;
+
+    private ImageCodec(String name, CompressFormat format, int quality, int maxBytes) {
+        mName = name;
+        mFormat = format;
+        mQuality = quality;
+        mMaxBytes = maxBytes;
+    }
+
+    // lossless, what every image was stored as before codecs existed
+    public static ImageCodec png() {
+        return new ImageCodec(PNG, CompressFormat.PNG, 100, 0);
+    }
+
+    // maxBytes of 0 means no budget, otherwise the quality is lowered until the image fits
+    public static ImageCodec jpeg(int quality, int maxBytes) {
+        return new ImageCodec(JPEG, CompressFormat.JPEG, quality, maxBytes);
+    }
+
+    public static ImageCodec webp(int quality, int maxBytes) {
+        return new ImageCodec(WEBP, CompressFormat.WEBP, quality, maxBytes);
+    }
+
+    // nothing is encoded, the picked file is copied as it is by the channel variant of addEntry()
+    public static ImageCodec original() {
+        return new ImageCodec(ORIGINAL, null, 100, 0);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isPassthrough() {
+        return mFormat == null;
+    }
+
+    public byte[] encode(Bitmap bitmap) {
+        if (isPassthrough()) {
+            throw new UnsupportedOperationException("The original bytes are copied, not encoded");
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int quality = mQuality;
+        while (true) {
+            bitmap.compress(mFormat, quality, stream);
+            // PNG ignores the quality, there is nothing to trade for size
+            if (mMaxBytes <= 0 || stream.size() <= mMaxBytes || mFormat == CompressFormat.PNG
+                    || quality <= MIN_QUALITY) {
+                return stream.toByteArray();
+            }
+            quality = Math.max(MIN_QUALITY, quality - QUALITY_STEP);
+            stream.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isPassthrough() ? mName : mName + "@" + mQuality;
+    }
+}
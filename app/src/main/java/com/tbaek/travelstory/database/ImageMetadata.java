@@ -0,0 +1,24 @@
+package com.tbaek.travelstory.database;
+
+
+// One image without its full-resolution bytes; fields outside the projection stay null
+public class ImageMetadata {
+    public final String id;
+    public final String place;
+    public final double latitude;
+    public final double longitude;
+    public final Long dateTaken;
+    public final String codec;
+    public final byte[] thumbnail;
+
+    public ImageMetadata(String id, String place, double latitude, double longitude,
+                         Long dateTaken, String codec, byte[] thumbnail) {
+        this.id = id;
+        this.place = place;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.dateTaken = dateTaken;
+        this.codec = codec;
+        this.thumbnail = thumbnail;
+    }
+}
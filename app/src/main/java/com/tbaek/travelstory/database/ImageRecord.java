@@ -0,0 +1,70 @@
+package com.tbaek.travelstory.database;
+
+
+// One row to be inserted, the bytes are already encoded
+public class ImageRecord {
+    public final String id;
+    public final String place;
+    public final double latitude;
+    public final double longitude;
+    public final byte[] image;
+    public final byte[] thumbnail;
+    // name of the ImageCodec that encoded the image
+    public final String codec;
+    // set instead of image when the bytes were put into the ImageStore beforehand
+    public final String file;
+    // capture time in milliseconds since the epoch, null if unknown
+    public final Long dateTaken;
+    // ContentHash of the image; computed from image on insert when null
+    public final String contentHash;
+
+    public ImageRecord(String id, String place, double latitude, double longitude,
+                       byte[] image, byte[] thumbnail) {
+        this(id, place, latitude, longitude, ImageCodec.PNG, image, thumbnail);
+    }
+
+    public ImageRecord(String id, String place, double latitude, double longitude,
+                       String codec, byte[] image, byte[] thumbnail) {
+        this(id, place, latitude, longitude, codec, image, null, thumbnail, null, null);
+    }
+
+    private ImageRecord(String id, String place, double latitude, double longitude,
+                        String codec, byte[] image, String file, byte[] thumbnail,
+                        Long dateTaken, String contentHash) {
+        this.id = id;
+        this.place = place;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.image = image;
+        this.thumbnail = thumbnail;
+        this.codec = codec;
+        this.file = file;
+        this.dateTaken = dateTaken;
+        this.contentHash = contentHash;
+    }
+
+    // a row for an image already written with DatabaseHelper.storeImage()
+    public static ImageRecord forStoredImage(String id, String place, double latitude,
+                                             double longitude, String codec, String file,
+                                             byte[] thumbnail, Long dateTaken) {
+        return forStoredImage(id, place, latitude, longitude, codec, file, thumbnail, dateTaken,
+                null);
+    }
+
+    // same, with the hash the content is shared by; the file is dropped if it is stored already
+    public static ImageRecord forStoredImage(String id, String place, double latitude,
+                                             double longitude, String codec, String file,
+                                             byte[] thumbnail, Long dateTaken,
+                                             String contentHash) {
+        return new ImageRecord(id, place, latitude, longitude, codec, null, file, thumbnail,
+                dateTaken, contentHash);
+    }
+
+    // another row for content found with DatabaseHelper.findByContentHash(), no bytes written
+    public static ImageRecord forStoredContent(String id, String place, double latitude,
+                                               double longitude, ImageMetadata stored,
+                                               Long dateTaken, String contentHash) {
+        return new ImageRecord(id, place, latitude, longitude, stored.codec, null, null,
+                stored.thumbnail, dateTaken, contentHash);
+    }
+}
@@ -0,0 +1,197 @@
+package com.tbaek.travelstory.database;
+
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
+
+// Keeps the full-resolution image bytes in app-private files, one file per image id
+public class ImageStore {
+    private static final String TAG = "ImageStore";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    // upper bound of a single transferFrom() call
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    private final Context mContext;
+    private final String mDirectoryName;
+    private File mDirectory;
+
+    // every database gets its own directory, the orphan sweep relies on that
+    public ImageStore(Context context, String directoryName) {
+        mContext = context;
+        mDirectoryName = directoryName;
+    }
+
+    // resolved lazily, the context may not be attached yet when the store is created
+    private synchronized File getDirectory() {
+        if (mDirectory == null) {
+            mDirectory = new File(mContext.getFilesDir(), mDirectoryName);
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                Log.e(TAG, "Could not create " + mDirectory);
+            }
+        }
+        return mDirectory;
+    }
+
+    // the reference kept in the database is the file name, so the store can move with the app
+    public static String getReference(String id) {
+        return id;
+    }
+
+    public File getFile(String reference) {
+        return new File(getDirectory(), reference);
+    }
+
+    // writes to a temporary file first so a crash never leaves a half written image behind
+    public String write(String id, byte[] data) throws IOException {
+        String reference = getReference(id);
+        File temp = new File(getDirectory(), reference + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        commit(temp, getFile(reference));
+        return reference;
+    }
+
+    // copies the channel to its end; from a FileChannel the kernel moves the bytes directly
+    public String write(String id, ReadableByteChannel source) throws IOException {
+        OutputSink sink = openSink(id);
+        try {
+            FileChannel target = sink.getChannel();
+            long position = 0;
+            long copied;
+            while ((copied = target.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                position += copied;
+            }
+            return sink.commit();
+        } catch (IOException e) {
+            sink.abort();
+            throw e;
+        }
+    }
+
+    // same as write, for callers that hand over the bytes piece by piece
+    public OutputSink openSink(String id) throws IOException {
+        String reference = getReference(id);
+        return new OutputSink(new File(getDirectory(), reference + TEMP_SUFFIX), getFile(reference));
+    }
+
+    public InputStream open(String reference) throws IOException {
+        return new BufferedInputStream(new FileInputStream(getFile(reference)));
+    }
+
+    // maps the file read-only; the pages stay outside of the Java heap
+    public ByteBuffer map(String reference) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getFile(reference), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+    }
+
+    // SHA-256 of the stored bytes, see ContentHash
+    public String hash(String reference) throws IOException {
+        InputStream in = open(reference);
+        try {
+            return ContentHash.of(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public byte[] read(String reference) throws IOException {
+        ByteBuffer buffer = map(reference);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    public boolean delete(String reference) {
+        return reference != null && getFile(reference).delete();
+    }
+
+    public void deleteAll() {
+        File[] files = getDirectory().listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    // removes every file that is not referenced anymore, including unfinished temporary files
+    public int deleteOrphans(Set<String> references) {
+        File[] files = getDirectory().listFiles();
+        if (files == null) return 0;
+        int deleted = 0;
+        for (File file : files) {
+            if (!references.contains(file.getName()) && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private static void commit(File temp, File target) throws IOException {
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not move " + temp + " to " + target);
+        }
+    }
+
+    public static class OutputSink {
+        private final File mTemp;
+        private final File mTarget;
+        private final FileOutputStream mOut;
+
+        OutputSink(File temp, File target) throws IOException {
+            mTemp = temp;
+            mTarget = target;
+            mOut = new FileOutputStream(temp);
+        }
+
+        public void write(byte[] data, int offset, int length) throws IOException {
+            mOut.write(data, offset, length);
+        }
+
+        public FileChannel getChannel() {
+            return mOut.getChannel();
+        }
+
+        public String commit() throws IOException {
+            try {
+                mOut.getFD().sync();
+            } finally {
+                mOut.close();
+            }
+            ImageStore.commit(mTemp, mTarget);
+            return mTarget.getName();
+        }
+
+        public void abort() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // nothing left to do, the file is removed below
+            }
+            mTemp.delete();
+        }
+    }
+}
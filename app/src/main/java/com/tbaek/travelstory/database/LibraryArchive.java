@@ -0,0 +1,550 @@
+package com.tbaek.travelstory.database;
+
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_CODEC;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_CONTENT_HASH;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_DATE_TAKEN;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_ID;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_IMAGE_FILE;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_LAT;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_LNG;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_PLACE_NAME;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_THUMBNAIL;
+import static com.tbaek.travelstory.database.DatabaseHelper.DB_TABLE;
+
+/**
+ * The whole library in one file, for moving it between devices. Rows are read a page at a
+ * time and the image bytes go from file channel to file channel, so memory stays the same
+ * however large the library is.
+ *
+ * The archive is a header, the entries, an index and a trailer:
+ * <pre>
+ * header:  int MAGIC, int VERSION
+ * entry:   int header length, entry header, image bytes
+ * index:   per entry the UTF id and the long offset of the entry
+ * trailer: long index offset, int entry count, int MAGIC
+ * </pre>
+ * An entry header holds the row and the length of the image bytes that follow it. Rows that
+ * share their content with an earlier entry carry no bytes, only the content hash.
+ *
+ * A restore walks the index and skips every id that is in the database already without
+ * reading its entry. Rows are committed in batches on the {@link DatabaseWriter}, like every
+ * other write, so a restore that was interrupted is resumed by running it again; image files
+ * of a batch that never committed are removed by the orphan sweep.
+ */
+public class LibraryArchive {
+    private static final int MAGIC = 0x54534152; // "TSAR"
+    private static final int VERSION = 1;
+
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 16;
+    // an entry header is the row with its thumbnail, anything larger is a corrupt archive
+    private static final int MAX_ENTRY_HEADER = 4 * 1024 * 1024;
+
+    private static final long NO_CONTENT = -1;
+    private static final long SHARED_CONTENT = -2;
+
+    // how long an interrupted restore still waits for the batch the writer is busy with
+    private static final long COMMIT_GRACE_MILLIS = 5000;
+
+    private static final String COLUMN_SHARED = "shared_content";
+    // rows after the first one with the same content refer to the bytes of that one, unless the
+    // export could not write them
+    private static final String[] COLUMNS = {
+            COLUMN_ID, COLUMN_PLACE_NAME, COLUMN_LAT, COLUMN_LNG, COLUMN_DATE_TAKEN, COLUMN_CODEC,
+            COLUMN_THUMBNAIL, COLUMN_IMAGE_FILE, COLUMN_CONTENT_HASH,
+            "(" + COLUMN_CONTENT_HASH + " IS NOT NULL AND " + DB_TABLE + ".rowid > " +
+                    "(SELECT min(other.rowid) FROM " + DB_TABLE + " AS other WHERE other." +
+                    COLUMN_CONTENT_HASH + " = " + DB_TABLE + "." + COLUMN_CONTENT_HASH + ")) AS " +
+                    COLUMN_SHARED };
+
+    // what an export or restore did with the entries
+    public static class Result {
+        // written to the archive, or restored into the database
+        public final int done;
+        // already in the database, only a restore skips entries
+        public final int skipped;
+        // exported without their image because the file was gone, or not restored
+        public final int failed;
+
+        Result(int done, int skipped, int failed) {
+            this.done = done;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+    }
+
+    private final DatabaseHelper mDb;
+    private final ImageStore mImageStore;
+    // where the index is collected while the entries are written
+    private final File mTempDirectory;
+
+    LibraryArchive(DatabaseHelper db, ImageStore imageStore, File tempDirectory) {
+        mDb = db;
+        mImageStore = imageStore;
+        mTempDirectory = tempDirectory;
+    }
+
+    /**
+     * Writes every row and its image bytes to the channel, starting at its current position.
+     * Runs on the calling thread and stops with an {@link InterruptedIOException} when it is
+     * interrupted.
+     */
+    Result export(FileChannel out, int pageSize, DatabaseHelper.ProgressListener listener)
+            throws IOException {
+        int page = Math.max(1, pageSize);
+        long base = out.position();
+        int total = (int) DatabaseUtils.queryNumEntries(mDb.getReadableDatabase(), DB_TABLE);
+        File indexFile = File.createTempFile("archive", ".index", mTempDirectory);
+        try {
+            DataOutputStream index = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(indexFile)));
+            int done = 0;
+            int failed = 0;
+            // content whose earlier rows went out without it, the next row that has it writes it
+            Set<String> missing = new HashSet<String>();
+            try {
+                ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                fileHeader.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(out, fileHeader);
+
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                Projection<Row> projection = new Projection<Row>(COLUMNS, new RowReader());
+                for (Row row : mDb.getAllImages(projection, PageKey.ROWID, page)) {
+                    checkInterrupted();
+                    index.writeUTF(row.id);
+                    index.writeLong(out.position() - base);
+                    boolean shared = row.shared && !missing.contains(row.contentHash);
+                    long contentLength = writeEntry(out, row, shared, header);
+                    if (contentLength == NO_CONTENT && row.file != null) {
+                        failed++;
+                    }
+                    if (row.contentHash != null) {
+                        if (contentLength == NO_CONTENT) {
+                            missing.add(row.contentHash);
+                        } else {
+                            missing.remove(row.contentHash);
+                        }
+                    }
+                    done++;
+                    if (listener != null && done % page == 0) {
+                        listener.onProgress(done, total);
+                    }
+                }
+            } finally {
+                index.close();
+            }
+
+            long indexOffset = out.position() - base;
+            FileInputStream indexIn = new FileInputStream(indexFile);
+            try {
+                transferFully(indexIn.getChannel(), 0, indexFile.length(), out);
+            } finally {
+                indexIn.close();
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(indexOffset).putInt(done).putInt(MAGIC).flip();
+            writeFully(out, trailer);
+            out.force(false);
+            if (listener != null) {
+                listener.onProgress(done, done);
+            }
+            return new Result(done, 0, failed);
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Adds the entries of the archive that are not in the database yet, {@code batchSize} rows
+     * per transaction committed on the writer. The channel has to start with the archive.
+     */
+    Result restore(FileChannel in, DatabaseWriter writer, int batchSize,
+                   DatabaseHelper.ProgressListener listener) throws IOException {
+        long size = in.size();
+        if (size < FILE_HEADER_SIZE + TRAILER_SIZE) {
+            throw new IOException("Not a library archive");
+        }
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(in, fileHeader, 0);
+        if (fileHeader.getInt() != MAGIC || fileHeader.getInt() != VERSION) {
+            throw new IOException("Not a library archive, or one of a newer version");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(in, trailer, size - TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        int count = trailer.getInt();
+        if (trailer.getInt() != MAGIC || indexOffset < FILE_HEADER_SIZE
+                || indexOffset > size - TRAILER_SIZE) {
+            throw new IOException("The archive is incomplete");
+        }
+
+        // the index is read through the channel position, the entries at their offsets
+        in.position(indexOffset);
+        DataInputStream index = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(in)));
+        int batch = Math.max(1, batchSize);
+        List<ImageRecord> records = new ArrayList<ImageRecord>(batch);
+        // content copied for the batch, a second entry with it shares the first copy
+        Set<String> copied = new HashSet<String>();
+        int done = 0;
+        int skipped = 0;
+        int failed = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                checkInterrupted();
+                String id = index.readUTF();
+                long offset = index.readLong();
+                if (mDb.containsImage(id)) {
+                    skipped++;
+                    continue;
+                }
+                Entry entry = readEntry(in, offset);
+                if (!id.equals(entry.id)) {
+                    throw new IOException("The index does not match the entry at " + offset);
+                }
+                String file = null;
+                if (entry.contentLength >= 0 && !isStored(entry.contentHash, copied)) {
+                    file = copyContent(in, entry);
+                    if (entry.contentHash != null) {
+                        copied.add(entry.contentHash);
+                    }
+                }
+                records.add(ImageRecord.forStoredImage(entry.id, entry.place, entry.latitude,
+                        entry.longitude, entry.codec, file, entry.thumbnail, entry.dateTaken,
+                        entry.contentHash));
+                if (records.size() == batch) {
+                    int restored = commit(writer, records);
+                    done += restored;
+                    failed += batch - restored;
+                    copied.clear();
+                    if (listener != null) {
+                        listener.onProgress(i + 1, count);
+                    }
+                }
+            }
+            int restored = commit(writer, records);
+            done += restored;
+            failed += records.size() - restored;
+            records.clear();
+        } finally {
+            // files of a batch that did not make it, the rows never point to them
+            for (ImageRecord record : records) {
+                mImageStore.delete(record.file);
+            }
+        }
+        if (listener != null) {
+            listener.onProgress(count, count);
+        }
+        return new Result(done, skipped, failed);
+    }
+
+    // The content length written, NO_CONTENT if the image file was gone and the row is written
+    // without it
+    private long writeEntry(FileChannel out, Row row, boolean shared,
+                            ByteArrayOutputStream header) throws IOException {
+        FileInputStream content = null;
+        long contentLength = NO_CONTENT;
+        if (shared) {
+            contentLength = SHARED_CONTENT;
+        } else if (row.file != null) {
+            try {
+                content = new FileInputStream(mImageStore.getFile(row.file));
+                contentLength = content.getChannel().size();
+            } catch (FileNotFoundException e) {
+                // written without content
+            }
+        }
+        try {
+            header.reset();
+            DataOutputStream data = new DataOutputStream(header);
+            data.writeUTF(row.id);
+            writeOptionalUTF(data, row.place);
+            data.writeDouble(row.latitude);
+            data.writeDouble(row.longitude);
+            data.writeBoolean(row.dateTaken != null);
+            data.writeLong(row.dateTaken != null ? row.dateTaken : 0);
+            data.writeUTF(row.codec);
+            // a row without content keeps no hash, the restored row owns no shared file
+            writeOptionalUTF(data, contentLength == NO_CONTENT ? null : row.contentHash);
+            data.writeInt(row.thumbnail != null ? row.thumbnail.length : -1);
+            if (row.thumbnail != null) {
+                data.write(row.thumbnail);
+            }
+            data.writeLong(contentLength);
+            data.flush();
+
+            ByteBuffer length = ByteBuffer.allocate(4);
+            length.putInt(header.size()).flip();
+            writeFully(out, length);
+            writeFully(out, ByteBuffer.wrap(header.toByteArray()));
+            if (content != null) {
+                transferFully(content.getChannel(), 0, contentLength, out);
+            }
+        } finally {
+            if (content != null) {
+                content.close();
+            }
+        }
+        return contentLength;
+    }
+
+    private static Entry readEntry(FileChannel in, long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(in, length, offset);
+        int headerLength = length.getInt();
+        if (headerLength < 0 || headerLength > MAX_ENTRY_HEADER) {
+            throw new IOException("Corrupt entry at " + offset);
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        readFully(in, header, offset + 4);
+        DataInputStream data = new DataInputStream(
+                new ByteArrayInputStream(header.array(), 0, headerLength));
+        Entry entry = new Entry();
+        entry.id = data.readUTF();
+        entry.place = readOptionalUTF(data);
+        entry.latitude = data.readDouble();
+        entry.longitude = data.readDouble();
+        boolean hasDateTaken = data.readBoolean();
+        long dateTaken = data.readLong();
+        entry.dateTaken = hasDateTaken ? dateTaken : null;
+        entry.codec = data.readUTF();
+        entry.contentHash = readOptionalUTF(data);
+        int thumbnailLength = data.readInt();
+        if (thumbnailLength >= 0) {
+            entry.thumbnail = new byte[thumbnailLength];
+            data.readFully(entry.thumbnail);
+        }
+        entry.contentLength = data.readLong();
+        entry.contentOffset = offset + 4 + headerLength;
+        if (entry.contentLength >= 0 && entry.contentOffset + entry.contentLength > in.size()) {
+            throw new IOException("Truncated entry at " + offset);
+        }
+        return entry;
+    }
+
+    // the content is in the database, or a copy was made for the current batch
+    private boolean isStored(String contentHash, Set<String> copied) {
+        if (contentHash == null) return false;
+        return copied.contains(contentHash)
+                || BlobTable.getFile(mDb.getReadableDatabase(), contentHash) != null;
+    }
+
+    private String copyContent(FileChannel in, Entry entry) throws IOException {
+        ImageStore.OutputSink sink = mImageStore.openSink(entry.id);
+        try {
+            transferFully(in, entry.contentOffset, entry.contentLength, sink.getChannel());
+            return sink.commit();
+        } catch (IOException e) {
+            sink.abort();
+            throw e;
+        }
+    }
+
+    // The number of records that were stored, the list is empty afterwards. Exclusive, so the
+    // batch is a transaction of its own and not part of whatever else is queued.
+    private static int commit(DatabaseWriter writer, final List<ImageRecord> records)
+            throws IOException {
+        if (records.isEmpty()) return 0;
+        long[] rowIds;
+        try {
+            rowIds = await(writer.submitExclusive(new DatabaseWriter.Operation<long[]>() {
+                @Override
+                public long[] run(DatabaseHelper db) {
+                    return db.addEntries(records, records.size(), null);
+                }
+            }, null));
+        } catch (InterruptedIOException e) {
+            // the batch may still commit, so its files stay and the orphan sweep takes them if
+            // it does not
+            records.clear();
+            throw e;
+        }
+        int stored = 0;
+        for (long rowId : rowIds) {
+            if (rowId != -1) {
+                stored++;
+            }
+        }
+        records.clear();
+        return stored;
+    }
+
+    // The writer completes or fails every task it accepted, even when it shuts down. After an
+    // interrupt the wait is bounded, the batch may commit either way and its files have to stay
+    // if it does. The interrupt stops the restore before the next entry.
+    private static <T> T await(Future<T> future) throws IOException {
+        boolean interrupted = false;
+        long deadline = 0;
+        try {
+            while (true) {
+                try {
+                    if (!interrupted) return future.get();
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw new TimeoutException();
+                    return future.get(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        deadline = System.currentTimeMillis() + COMMIT_GRACE_MILLIS;
+                    }
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    throw new InterruptedIOException("Stopped waiting for the batch to commit");
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not commit the restored rows", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void writeOptionalUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readOptionalUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position + buffer.position());
+            if (read < 0) throw new EOFException();
+        }
+        buffer.flip();
+    }
+
+    // From a file channel the kernel copies the bytes without them passing the heap. A file
+    // only stops short at its end, a transfer without progress anywhere else would spin here.
+    private static void transferFully(FileChannel source, long position, long count,
+                                      FileChannel target) throws IOException {
+        long copied = 0;
+        while (copied < count) {
+            checkInterrupted();
+            long transferred = source.transferTo(position + copied, count - copied, target);
+            if (transferred <= 0) {
+                if (position + copied >= source.size()) throw new EOFException();
+                throw new IOException("No progress copying " + (count - copied) + " bytes at " +
+                        (position + copied));
+            }
+            copied += transferred;
+        }
+    }
+
+    private static class Row {
+        String id;
+        String place;
+        double latitude;
+        double longitude;
+        Long dateTaken;
+        String codec;
+        byte[] thumbnail;
+        String file;
+        String contentHash;
+        boolean shared;
+    }
+
+    private static class Entry {
+        String id;
+        String place;
+        double latitude;
+        double longitude;
+        Long dateTaken;
+        String codec;
+        byte[] thumbnail;
+        String contentHash;
+        long contentOffset;
+        long contentLength;
+    }
+
+    // Every page is a cursor of its own, the column indexes are resolved once for each
+    private static class RowReader implements RowMapper<Row> {
+        private Cursor mCursor;
+        private int mId;
+        private int mPlace;
+        private int mLatitude;
+        private int mLongitude;
+        private int mDateTaken;
+        private int mCodec;
+        private int mThumbnail;
+        private int mFile;
+        private int mContentHash;
+        private int mShared;
+
+        @Override
+        public Row map(Cursor cursor) {
+            if (cursor != mCursor) {
+                mCursor = cursor;
+                mId = cursor.getColumnIndexOrThrow(COLUMN_ID);
+                mPlace = cursor.getColumnIndexOrThrow(COLUMN_PLACE_NAME);
+                mLatitude = cursor.getColumnIndexOrThrow(COLUMN_LAT);
+                mLongitude = cursor.getColumnIndexOrThrow(COLUMN_LNG);
+                mDateTaken = cursor.getColumnIndexOrThrow(COLUMN_DATE_TAKEN);
+                mCodec = cursor.getColumnIndexOrThrow(COLUMN_CODEC);
+                mThumbnail = cursor.getColumnIndexOrThrow(COLUMN_THUMBNAIL);
+                mFile = cursor.getColumnIndexOrThrow(COLUMN_IMAGE_FILE);
+                mContentHash = cursor.getColumnIndexOrThrow(COLUMN_CONTENT_HASH);
+                mShared = cursor.getColumnIndexOrThrow(COLUMN_SHARED);
+            }
+            Row row = new Row();
+            row.id = cursor.getString(mId);
+            row.place = cursor.getString(mPlace);
+            row.latitude = cursor.getDouble(mLatitude);
+            row.longitude = cursor.getDouble(mLongitude);
+            row.dateTaken = cursor.isNull(mDateTaken) ? null : cursor.getLong(mDateTaken);
+            row.codec = cursor.getString(mCodec);
+            row.thumbnail = cursor.getBlob(mThumbnail);
+            row.file = cursor.getString(mFile);
+            row.contentHash = cursor.getString(mContentHash);
+            row.shared = cursor.getInt(mShared) != 0;
+            return row;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.tbaek.travelstory.database;
+
+
+import android.database.Cursor;
+
+import java.io.Closeable;
+
+// A cursor that hands out typed rows. The rows are mapped as they are read, so memory stays
+// at one CursorWindow however many rows match.
+public class MappedCursor<T> implements Closeable {
+    private final Cursor mCursor;
+    private final RowMapper<T> mMapper;
+
+    MappedCursor(Cursor cursor, RowMapper<T> mapper) {
+        mCursor = cursor;
+        mMapper = mapper;
+    }
+
+    // runs the query if it has not run yet
+    public int getCount() {
+        return mCursor.getCount();
+    }
+
+    public boolean moveToNext() {
+        return mCursor.moveToNext();
+    }
+
+    public T get() {
+        return mMapper.map(mCursor);
+    }
+
+    @Override
+    public void close() {
+        mCursor.close();
+    }
+}
@@ -0,0 +1,16 @@
+package com.tbaek.travelstory.database;
+
+
+import android.database.sqlite.SQLiteDatabase;
+
+// One numbered schema change, applied inside the upgrade transaction
+abstract class Migration {
+    // the schema version this migration produces
+    final int version;
+
+    Migration(int version) {
+        this.version = version;
+    }
+
+    abstract void migrate(SQLiteDatabase db);
+}
@@ -0,0 +1,381 @@
+package com.tbaek.travelstory.database;
+
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.media.ThumbnailUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every schema change since version 1. New databases are created at version 1 and run through
+ * the same migrations as upgraded ones, so there is a single definition of the schema.
+ *
+ * Statements are written out per migration on purpose: a migration must keep producing the
+ * same schema even after later versions change the table again. For the same reason nothing
+ * here uses DatabaseHelper, BlobTable or SearchIndex; the names, statements and constants are
+ * copies of what they were at the version that introduced them and are never edited.
+ */
+class Migrations {
+    // the names of the images table and its columns, none of them has been renamed
+    private static final String DB_TABLE          = "table_images";
+    private static final String COLUMN_ID         = "id";
+    private static final String COLUMN_PLACE_NAME = "place_name";
+    private static final String COLUMN_LAT        = "latitude";
+    private static final String COLUMN_LNG        = "longitude";
+    private static final String COLUMN_IMAGE_FILE = "image_file";
+    private static final String COLUMN_THUMBNAIL  = "thumbnail_data";
+    private static final String COLUMN_DATE_TAKEN = "date_taken";
+    private static final String COLUMN_CODEC      = "codec";
+    private static final String COLUMN_CONTENT_HASH = "content_hash";
+
+    // only present before version 3, the bytes now live in the ImageStore
+    private static final String COLUMN_IMAGE = "image_data";
+
+    // Version 2 thumbnails are PNGs of the marker size at the time, the 60dp of
+    // custom_profile_image. A later change of the marker size applies to new imports only.
+    private static final float THUMBNAIL_SIZE_DP_V2 = 60f;
+
+    // the codec name every image before version 6 was stored with
+    private static final String CODEC_PNG_V6 = "png";
+
+    // The search index as it shipped in version 8, over the place name only. Its triggers
+    // name the indexed columns, so a column added to SearchIndex later needs a migration that
+    // drops the index and its triggers, creates them with the new columns and rebuilds.
+    private static final String SEARCH_TABLE_V8 = "images_search";
+    private static final String SEARCH_COLUMNS_V8 = COLUMN_PLACE_NAME;
+    private static final String[] CREATE_SEARCH_INDEX_V8 = {
+            "CREATE VIRTUAL TABLE " + SEARCH_TABLE_V8 + " USING fts4(" + SEARCH_COLUMNS_V8 +
+                    ", content=\"" + DB_TABLE + "\", prefix=\"1,2\")",
+            "CREATE TRIGGER " + SEARCH_TABLE_V8 + "_after_insert AFTER INSERT ON " + DB_TABLE +
+                    " BEGIN INSERT INTO " + SEARCH_TABLE_V8 + "(docid, " + SEARCH_COLUMNS_V8 +
+                    ") VALUES (new.rowid, new." + COLUMN_PLACE_NAME + "); END",
+            "CREATE TRIGGER " + SEARCH_TABLE_V8 + "_before_update BEFORE UPDATE OF " +
+                    SEARCH_COLUMNS_V8 + " ON " + DB_TABLE + " BEGIN DELETE FROM " +
+                    SEARCH_TABLE_V8 + " WHERE docid = old.rowid; END",
+            "CREATE TRIGGER " + SEARCH_TABLE_V8 + "_after_update AFTER UPDATE OF " +
+                    SEARCH_COLUMNS_V8 + " ON " + DB_TABLE + " BEGIN INSERT INTO " +
+                    SEARCH_TABLE_V8 + "(docid, " + SEARCH_COLUMNS_V8 + ") VALUES (new.rowid, new." +
+                    COLUMN_PLACE_NAME + "); END",
+            "CREATE TRIGGER " + SEARCH_TABLE_V8 + "_before_delete BEFORE DELETE ON " + DB_TABLE +
+                    " BEGIN DELETE FROM " + SEARCH_TABLE_V8 + " WHERE docid = old.rowid; END",
+            "INSERT INTO " + SEARCH_TABLE_V8 + "(" + SEARCH_TABLE_V8 + ") VALUES ('rebuild')" };
+
+    // the blobs table as it shipped in version 7
+    private static final String BLOB_TABLE_V7 = "blobs";
+    private static final String CREATE_BLOB_TABLE_V7 = "CREATE TABLE " + BLOB_TABLE_V7 + "(" +
+            "hash TEXT PRIMARY KEY NOT NULL," +
+            "file TEXT NOT NULL," +
+            "ref_count INTEGER NOT NULL);";
+
+    // legacy blobs are copied out in slices that comfortably fit into a CursorWindow
+    private static final int LEGACY_BLOB_SLICE = 512 * 1024;
+
+    private static final String INDEX_LOCATION   = "index_images_location";
+    private static final String INDEX_DATE_TAKEN = "index_images_date_taken";
+    private static final String INDEX_CONTENT_HASH = "index_images_content_hash";
+
+    // the table as it shipped in version 1
+    static final String CREATE_TABLE_V1 = "CREATE TABLE " + DB_TABLE + "("+
+            COLUMN_ID         + " TEXT,"   +
+            COLUMN_PLACE_NAME + " TEXT,"   +
+            COLUMN_LAT        + " DOUBLE," +
+            COLUMN_LNG        + " DOUBLE," +
+            COLUMN_IMAGE      + " BLOB);";
+
+    private final Context mContext;
+    private final ImageStore mImageStore;
+    private final List<Migration> mMigrations = new ArrayList<Migration>();
+
+    Migrations(Context context, ImageStore imageStore) {
+        mContext = context;
+        mImageStore = imageStore;
+
+        // version 2 stores a marker-sized thumbnail next to the full-resolution image
+        mMigrations.add(new Migration(2) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN " + COLUMN_THUMBNAIL + " BLOB");
+                backfillThumbnails(db);
+            }
+        });
+        // version 3 moves the full-resolution image out of the table into the ImageStore
+        mMigrations.add(new Migration(3) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                moveImagesToStore(db);
+            }
+        });
+        // version 4 indexes the location for viewport queries
+        mMigrations.add(new Migration(4) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("CREATE INDEX " + INDEX_LOCATION + " ON " + DB_TABLE +
+                        "(" + COLUMN_LAT + ", " + COLUMN_LNG + ");");
+            }
+        });
+        // version 5 makes the id the primary key and adds the capture time
+        mMigrations.add(new Migration(5) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                String newTable = DB_TABLE + "_new";
+                db.execSQL("CREATE TABLE " + newTable + "(" +
+                        COLUMN_ID         + " TEXT PRIMARY KEY NOT NULL," +
+                        COLUMN_PLACE_NAME + " TEXT,"    +
+                        COLUMN_LAT        + " DOUBLE,"  +
+                        COLUMN_LNG        + " DOUBLE,"  +
+                        COLUMN_IMAGE_FILE + " TEXT,"    +
+                        COLUMN_THUMBNAIL  + " BLOB,"    +
+                        COLUMN_DATE_TAKEN + " INTEGER);");
+                // rows without an id could never be deleted, duplicates keep the first copy
+                String columns = COLUMN_ID + ", " + COLUMN_PLACE_NAME + ", " + COLUMN_LAT + ", " +
+                        COLUMN_LNG + ", " + COLUMN_IMAGE_FILE + ", " + COLUMN_THUMBNAIL;
+                db.execSQL("INSERT OR IGNORE INTO " + newTable + " (" + columns + ") SELECT " +
+                        columns + " FROM " + DB_TABLE + " WHERE " + COLUMN_ID + " IS NOT NULL " +
+                        "ORDER BY rowid");
+                db.execSQL("DROP TABLE " + DB_TABLE);
+                db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + DB_TABLE);
+                db.execSQL("CREATE INDEX " + INDEX_LOCATION + " ON " + DB_TABLE +
+                        "(" + COLUMN_LAT + ", " + COLUMN_LNG + ");");
+                db.execSQL("CREATE INDEX " + INDEX_DATE_TAKEN + " ON " + DB_TABLE +
+                        "(" + COLUMN_DATE_TAKEN + ");");
+            }
+        });
+        // version 6 records the codec of every stored image, everything before was PNG
+        mMigrations.add(new Migration(6) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN " + COLUMN_CODEC +
+                        " TEXT NOT NULL DEFAULT '" + CODEC_PNG_V6 + "'");
+            }
+        });
+        // version 7 shares one file between all rows of the same content
+        mMigrations.add(new Migration(7) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                db.execSQL(CREATE_BLOB_TABLE_V7);
+                db.execSQL("ALTER TABLE " + DB_TABLE + " ADD COLUMN " + COLUMN_CONTENT_HASH +
+                        " TEXT");
+                db.execSQL("CREATE INDEX " + INDEX_CONTENT_HASH + " ON " + DB_TABLE +
+                        "(" + COLUMN_CONTENT_HASH + ");");
+                hashStoredImages(db);
+            }
+        });
+        // version 8 indexes the place names for full-text search
+        mMigrations.add(new Migration(8) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                for (String statement : CREATE_SEARCH_INDEX_V8) {
+                    db.execSQL(statement);
+                }
+            }
+        });
+    }
+
+    int getLatestVersion() {
+        return mMigrations.get(mMigrations.size() - 1).version;
+    }
+
+    // applies every migration after oldVersion up to and including newVersion
+    void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : mMigrations) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                migration.migrate(db);
+            }
+        }
+    }
+
+    // generate the missing thumbnails one row at a time so only a single full image is in memory
+    private void backfillThumbnails(SQLiteDatabase db) {
+        int size = (int) (THUMBNAIL_SIZE_DP_V2 *
+                mContext.getResources().getDisplayMetrics().density + 0.5f);
+        Cursor ids = db.rawQuery("SELECT " + COLUMN_ID + " FROM " + DB_TABLE +
+                " WHERE " + COLUMN_THUMBNAIL + " IS NULL", null);
+        try {
+            while (ids.moveToNext()) {
+                String id = ids.getString(0);
+                byte[] image = readLegacyImage(db, id);
+                if (image == null) {
+                    continue;
+                }
+                Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
+                if (bitmap == null) {
+                    continue;
+                }
+                Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, size, size);
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                thumbnail.compress(CompressFormat.PNG, 0, png);
+                ContentValues cv = new ContentValues();
+                cv.put(COLUMN_THUMBNAIL, png.toByteArray());
+                db.update(DB_TABLE, cv, COLUMN_ID + "=?", new String[] { id });
+                thumbnail.recycle();
+                bitmap.recycle();
+            }
+        } finally {
+            ids.close();
+        }
+    }
+
+    private static byte[] readLegacyImage(SQLiteDatabase db, String id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            if (!copyLegacyImage(db, id, out)) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    // streams the image_data blob of one row in slices, returns false if the row has no image
+    private static boolean copyLegacyImage(SQLiteDatabase db, String id, OutputStream out)
+            throws IOException {
+        String[] idArgs = new String[] { id };
+        long length;
+        Cursor res = db.rawQuery("SELECT length(" + COLUMN_IMAGE + ") FROM " + DB_TABLE +
+                " WHERE " + COLUMN_ID + "=?", idArgs);
+        try {
+            if (!res.moveToFirst() || res.isNull(0)) {
+                return false;
+            }
+            length = res.getLong(0);
+        } finally {
+            res.close();
+        }
+        // substr() is 1-based and works on bytes for blobs
+        for (long offset = 1; offset <= length; offset += LEGACY_BLOB_SLICE) {
+            Cursor slice = db.rawQuery("SELECT substr(" + COLUMN_IMAGE + ", " + offset + ", " +
+                    LEGACY_BLOB_SLICE + ") FROM " + DB_TABLE + " WHERE " + COLUMN_ID + "=?", idArgs);
+            try {
+                if (slice.moveToFirst()) {
+                    out.write(slice.getBlob(0));
+                }
+            } finally {
+                slice.close();
+            }
+        }
+        return true;
+    }
+
+    private void moveImagesToStore(SQLiteDatabase db) {
+        Cursor ids = db.rawQuery("SELECT " + COLUMN_ID + " FROM " + DB_TABLE +
+                " WHERE " + COLUMN_ID + " IS NOT NULL", null);
+        try {
+            while (ids.moveToNext()) {
+                String id = ids.getString(0);
+                try {
+                    ImageStore.OutputSink sink = mImageStore.openSink(id);
+                    if (copyLegacyImage(db, id, new SinkOutputStream(sink))) {
+                        sink.commit();
+                    } else {
+                        sink.abort();
+                    }
+                } catch (IOException e) {
+                    // aborting the upgrade keeps the blobs in place, half written files are
+                    // removed by the next orphan sweep
+                    throw new SQLiteException("Could not move image " + id + " to the image store", e);
+                }
+            }
+        } finally {
+            ids.close();
+        }
+
+        // SQLite can not drop a column, so rebuild the table without image_data
+        String newTable = DB_TABLE + "_new";
+        db.execSQL("CREATE TABLE " + newTable + "(" +
+                COLUMN_ID         + " TEXT,"   +
+                COLUMN_PLACE_NAME + " TEXT,"   +
+                COLUMN_LAT        + " DOUBLE," +
+                COLUMN_LNG        + " DOUBLE," +
+                COLUMN_IMAGE_FILE + " TEXT,"   +
+                COLUMN_THUMBNAIL  + " BLOB);");
+        db.execSQL("INSERT INTO " + newTable + " SELECT " +
+                COLUMN_ID + ", " + COLUMN_PLACE_NAME + ", " + COLUMN_LAT + ", " + COLUMN_LNG + ", " +
+                "CASE WHEN " + COLUMN_IMAGE + " IS NULL THEN NULL ELSE " + COLUMN_ID + " END, " +
+                COLUMN_THUMBNAIL + " FROM " + DB_TABLE);
+        db.execSQL("DROP TABLE " + DB_TABLE);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + DB_TABLE);
+    }
+
+    // Hashes every stored file and points duplicates at the first copy. The originals of these
+    // rows are gone, so unlike new imports they are keyed by the bytes that were stored. The
+    // files of the other copies are left to the orphan sweep, a failed upgrade still has them.
+    // The hash is the live ContentHash on purpose, imports look the content up by it.
+    private void hashStoredImages(SQLiteDatabase db) {
+        List<String[]> rows = new ArrayList<String[]>();
+        Cursor res = db.rawQuery("SELECT " + COLUMN_ID + ", " + COLUMN_IMAGE_FILE + " FROM " +
+                DB_TABLE + " WHERE " + COLUMN_IMAGE_FILE + " IS NOT NULL ORDER BY rowid", null);
+        try {
+            while (res.moveToNext()) {
+                rows.add(new String[] { res.getString(0), res.getString(1) });
+            }
+        } finally {
+            res.close();
+        }
+        for (String[] row : rows) {
+            String hash;
+            try {
+                hash = mImageStore.hash(row[1]);
+            } catch (IOException e) {
+                // the file is gone, the row keeps its reference and no hash
+                continue;
+            }
+            String file = getBlobFileV7(db, hash);
+            if (file == null) {
+                file = row[1];
+                ContentValues blob = new ContentValues();
+                blob.put("hash", hash);
+                blob.put("file", file);
+                blob.put("ref_count", 1);
+                db.insertOrThrow(BLOB_TABLE_V7, null, blob);
+            } else {
+                db.execSQL("UPDATE " + BLOB_TABLE_V7 + " SET ref_count = ref_count + 1 " +
+                        "WHERE hash=?", new Object[] { hash });
+            }
+            ContentValues cv = new ContentValues();
+            cv.put(COLUMN_CONTENT_HASH, hash);
+            cv.put(COLUMN_IMAGE_FILE, file);
+            db.update(DB_TABLE, cv, COLUMN_ID + "=?", new String[] { row[0] });
+        }
+    }
+
+    private static String getBlobFileV7(SQLiteDatabase db, String hash) {
+        Cursor res = db.rawQuery("SELECT file FROM " + BLOB_TABLE_V7 + " WHERE hash=?",
+                new String[] { hash });
+        try {
+            return res.moveToFirst() ? res.getString(0) : null;
+        } finally {
+            res.close();
+        }
+    }
+
+    // adapts an ImageStore sink to the OutputStream the legacy blob copy writes to
+    private static class SinkOutputStream extends OutputStream {
+        private final ImageStore.OutputSink mSink;
+
+        SinkOutputStream(ImageStore.OutputSink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mSink.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mSink.write(b, off, len);
+        }
+    }
+}
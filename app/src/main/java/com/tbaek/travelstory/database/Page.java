@@ -0,0 +1,16 @@
+package com.tbaek.travelstory.database;
+
+
+import java.util.List;
+
+// One page of a keyset-paginated query
+public class Page<T> {
+    public final List<T> rows;
+    // pass to the next call to continue after this page, null on the last page
+    public final String nextKey;
+
+    Page(List<T> rows, String nextKey) {
+        this.rows = rows;
+        this.nextKey = nextKey;
+    }
+}
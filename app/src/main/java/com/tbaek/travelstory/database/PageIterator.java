@@ -0,0 +1,50 @@
+package com.tbaek.travelstory.database;
+
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Walks a table page by page, the next page is only queried once the current one is used up
+class PageIterator<T> implements Iterator<T> {
+    private final DatabaseHelper mDb;
+    private final Projection<T> mProjection;
+    private final PageKey mKey;
+    private final int mPageSize;
+
+    private Page<T> mPage;
+    private int mIndex;
+
+    PageIterator(DatabaseHelper db, Projection<T> projection, PageKey key, int pageSize) {
+        mDb = db;
+        mProjection = projection;
+        mKey = key;
+        mPageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mPage == null) {
+            mPage = mDb.getImagesPage(mProjection, mKey, null, mPageSize);
+            mIndex = 0;
+        }
+        while (mIndex == mPage.rows.size()) {
+            if (mPage.nextKey == null) return false;
+            mPage = mDb.getImagesPage(mProjection, mKey, mPage.nextKey, mPageSize);
+            mIndex = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mPage.rows.get(mIndex++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
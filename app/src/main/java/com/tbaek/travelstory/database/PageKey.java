@@ -0,0 +1,22 @@
+package com.tbaek.travelstory.database;
+
+
+// What pages are ordered and continued by. Both are indexed, so every page is a seek to the
+// key of the previous one instead of skipping an OFFSET worth of rows.
+public enum PageKey {
+    // the image id, stable across vacuums and exports
+    ID(DatabaseHelper.COLUMN_ID),
+    // insertion order, the key is the rowid as a decimal string
+    ROWID("rowid");
+
+    final String column;
+
+    PageKey(String column) {
+        this.column = column;
+    }
+
+    // the comparison binds the key as text, the rowid has to be compared as a number
+    String after() {
+        return this == ROWID ? column + " > CAST(? AS INTEGER)" : column + " > ?";
+    }
+}
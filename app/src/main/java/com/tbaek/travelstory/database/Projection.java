@@ -0,0 +1,84 @@
+package com.tbaek.travelstory.database;
+
+
+import android.database.Cursor;
+
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_CODEC;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_DATE_TAKEN;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_ID;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_LAT;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_LNG;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_PLACE_NAME;
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_THUMBNAIL;
+
+// The columns a query selects together with the mapper that reads them back. Only what is
+// listed here is copied into the CursorWindow, so leave the thumbnail out unless it is used.
+public class Projection<T> implements RowMapper<T> {
+    private static final String[] METADATA_COLUMNS = {
+            COLUMN_ID, COLUMN_PLACE_NAME, COLUMN_LAT, COLUMN_LNG, COLUMN_DATE_TAKEN, COLUMN_CODEC };
+
+    // everything but the thumbnail
+    public static final Projection<ImageMetadata> METADATA =
+            new Projection<ImageMetadata>(METADATA_COLUMNS, new MetadataMapper(false));
+
+    public static final Projection<ImageMetadata> METADATA_WITH_THUMBNAIL =
+            new Projection<ImageMetadata>(append(METADATA_COLUMNS, COLUMN_THUMBNAIL),
+                    new MetadataMapper(true));
+
+    private final String[] mColumns;
+    private final RowMapper<T> mMapper;
+
+    public Projection(String[] columns, RowMapper<T> mapper) {
+        mColumns = columns.clone();
+        mMapper = mapper;
+    }
+
+    String[] getColumns() {
+        return mColumns;
+    }
+
+    // comma separated, for the SELECT clause
+    String getSelection() {
+        StringBuilder selection = new StringBuilder();
+        for (String column : mColumns) {
+            if (selection.length() > 0) {
+                selection.append(", ");
+            }
+            selection.append(column);
+        }
+        return selection.toString();
+    }
+
+    @Override
+    public T map(Cursor cursor) {
+        return mMapper.map(cursor);
+    }
+
+    private static String[] append(String[] columns, String column) {
+        String[] result = new String[columns.length + 1];
+        System.arraycopy(columns, 0, result, 0, columns.length);
+        result[columns.length] = column;
+        return result;
+    }
+
+    private static class MetadataMapper implements RowMapper<ImageMetadata> {
+        private final boolean mThumbnail;
+
+        MetadataMapper(boolean thumbnail) {
+            mThumbnail = thumbnail;
+        }
+
+        @Override
+        public ImageMetadata map(Cursor cursor) {
+            int dateTaken = cursor.getColumnIndexOrThrow(COLUMN_DATE_TAKEN);
+            return new ImageMetadata(
+                    cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_ID)),
+                    cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_PLACE_NAME)),
+                    cursor.getDouble(cursor.getColumnIndexOrThrow(COLUMN_LAT)),
+                    cursor.getDouble(cursor.getColumnIndexOrThrow(COLUMN_LNG)),
+                    cursor.isNull(dateTaken) ? null : cursor.getLong(dateTaken),
+                    cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_CODEC)),
+                    mThumbnail ? cursor.getBlob(cursor.getColumnIndexOrThrow(COLUMN_THUMBNAIL)) : null);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.tbaek.travelstory.database;
+
+
+import android.database.Cursor;
+
+// Turns the current row of a cursor into an object. Columns are looked up by name, so a
+// mapper keeps working when a query selects more columns or in a different order.
+public interface RowMapper<T> {
+    T map(Cursor cursor);
+}
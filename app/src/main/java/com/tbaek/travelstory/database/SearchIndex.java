@@ -0,0 +1,94 @@
+package com.tbaek.travelstory.database;
+
+
+import static com.tbaek.travelstory.database.DatabaseHelper.COLUMN_PLACE_NAME;
+import static com.tbaek.travelstory.database.DatabaseHelper.DB_TABLE;
+
+// An FTS4 index over the text columns of the images table. It is an external content table:
+// the words are indexed but the text is read from the images table, so nothing is stored twice.
+// Triggers keep it in step with every insert, update and delete, whichever code path runs them.
+//
+// Rows are matched by rowid. A migration that rebuilds the images table changes the rowids and
+// has to run REBUILD afterwards.
+//
+// The index is created by the version 8 migration from its own copy of these statements, the
+// ones here describe the current schema and a test checks that both agree. To index another
+// column, e.g. captions, add it to COLUMNS and add a migration that drops the index and its
+// four triggers, creates them again as createTable() and createTriggers() now read, written
+// out like the other migrations, and runs REBUILD. Editing COLUMNS alone changes nothing in
+// existing databases.
+class SearchIndex {
+    static final String TABLE = "images_search";
+
+    // Terms of one and two characters are indexed on their own as well. A short prefix then is
+    // a single lookup instead of a merge of every word it starts, which keeps a search within
+    // a few milliseconds at 100k rows for about twice the index size.
+    private static final String PREFIX_LENGTHS = "1,2";
+
+    // the indexed columns, named like the columns of the images table they are read from
+    private static final String[] COLUMNS = { COLUMN_PLACE_NAME };
+
+    private SearchIndex() {
+    }
+
+    static String createTable() {
+        return "CREATE VIRTUAL TABLE " + TABLE + " USING fts4(" + join("", COLUMNS) +
+                ", content=\"" + DB_TABLE + "\", prefix=\"" + PREFIX_LENGTHS + "\")";
+    }
+
+    // removing a row reads its old text from the images table, so it runs before the change
+    static String[] createTriggers() {
+        String columns = join("", COLUMNS);
+        String newValues = join("new.", COLUMNS);
+        String insert = "INSERT INTO " + TABLE + "(docid, " + columns + ") VALUES (new.rowid, " +
+                newValues + ");";
+        String delete = "DELETE FROM " + TABLE + " WHERE docid = old.rowid;";
+        return new String[] {
+                "CREATE TRIGGER " + TABLE + "_after_insert AFTER INSERT ON " + DB_TABLE +
+                        " BEGIN " + insert + " END",
+                "CREATE TRIGGER " + TABLE + "_before_update BEFORE UPDATE OF " + columns +
+                        " ON " + DB_TABLE + " BEGIN " + delete + " END",
+                "CREATE TRIGGER " + TABLE + "_after_update AFTER UPDATE OF " + columns +
+                        " ON " + DB_TABLE + " BEGIN " + insert + " END",
+                "CREATE TRIGGER " + TABLE + "_before_delete BEFORE DELETE ON " + DB_TABLE +
+                        " BEGIN " + delete + " END" };
+    }
+
+    // Every word of the query as a prefix, all of which have to match, or null if the query
+    // has no words. Words are split and case folded like the simple tokenizer does it, which
+    // also keeps FTS operators and quotes out of the expression.
+    static String toMatchExpression(String query) {
+        StringBuilder expression = new StringBuilder();
+        int length = query.length();
+        for (int i = 0; i < length; i++) {
+            char c = query.charAt(i);
+            if (!isTokenChar(c)) continue;
+            boolean first = i == 0 || !isTokenChar(query.charAt(i - 1));
+            if (first && expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+            if (i + 1 == length || !isTokenChar(query.charAt(i + 1))) {
+                expression.append('*');
+            }
+        }
+        return expression.length() > 0 ? expression.toString() : null;
+    }
+
+    // ASCII letters and digits, everything outside of ASCII is part of a word as well
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z');
+    }
+
+    private static String join(String prefix, String[] columns) {
+        StringBuilder joined = new StringBuilder();
+        for (String column : columns) {
+            if (joined.length() > 0) {
+                joined.append(", ");
+            }
+            joined.append(prefix).append(column);
+        }
+        return joined.toString();
+    }
+}
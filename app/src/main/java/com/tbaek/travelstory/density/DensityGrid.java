@@ -0,0 +1,146 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.density;
+
+import com.tbaek.travelstory.clustering.GridIndex;
+
+/**
+ * Photo counts over one 256 pixel map tile, in cells of {@link #CELL_SIZE} pixels. Photos just
+ * beyond the edges are counted as well, so the blurred densities of neighbouring tiles meet at
+ * their border. Nothing is carried across the antimeridian, the tiles there keep a faint seam.
+ */
+public class DensityGrid {
+    public static final int TILE_SIZE = 256;
+    static final int CELL_SIZE = 8;
+    static final int CELLS = TILE_SIZE / CELL_SIZE;
+    // cells counted beyond each edge, one for the blur and one to sample between cell centers
+    static final int MARGIN = 2;
+
+    private static final int SIDE = CELLS + 2 * MARGIN;
+    // LatLng wraps 180 to -180, which would turn the bounds around
+    private static final double MAX_LONGITUDE = 180 - 1e-9;
+
+    private final double mWorldSize;
+    // world pixel of the north-west corner of the first counted cell
+    private final double mLeft;
+    private final double mTop;
+    private final float[] mCells = new float[SIDE * SIDE];
+    private int mCount;
+
+    public DensityGrid(int x, int y, int zoom) {
+        mWorldSize = getWorldSize(zoom);
+        mLeft = (double) x * TILE_SIZE - MARGIN * CELL_SIZE;
+        mTop = (double) y * TILE_SIZE - MARGIN * CELL_SIZE;
+    }
+
+    // the counted area in degrees, cut off at the edges of the world
+    public double getNorth() {
+        return GridIndex.unprojectLatitude(toWorld(mTop));
+    }
+
+    public double getSouth() {
+        return GridIndex.unprojectLatitude(toWorld(mTop + SIDE * CELL_SIZE));
+    }
+
+    public double getWest() {
+        return GridIndex.unprojectLongitude(toWorld(mLeft));
+    }
+
+    public double getEast() {
+        return Math.min(MAX_LONGITUDE,
+                GridIndex.unprojectLongitude(toWorld(mLeft + SIDE * CELL_SIZE)));
+    }
+
+    // counts a photo, returns false if it is outside of the counted area
+    public boolean add(double latitude, double longitude) {
+        double x = GridIndex.projectX(longitude) * mWorldSize - mLeft;
+        double y = GridIndex.projectY(latitude) * mWorldSize - mTop;
+        int column = (int) Math.floor(x / CELL_SIZE);
+        int row = (int) Math.floor(y / CELL_SIZE);
+        if (column < 0 || column >= SIDE || row < 0 || row >= SIDE) return false;
+        mCells[row * SIDE + column]++;
+        mCount++;
+        return true;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    // spreads every cell over its neighbours with a 1-2-1 kernel; only the edges lose weight
+    public void blur() {
+        float[] rows = new float[mCells.length];
+        for (int row = 0; row < SIDE; row++) {
+            for (int column = 0; column < SIDE; column++) {
+                rows[row * SIDE + column] = (cell(mCells, column - 1, row)
+                        + 2 * cell(mCells, column, row) + cell(mCells, column + 1, row)) / 4;
+            }
+        }
+        for (int row = 0; row < SIDE; row++) {
+            for (int column = 0; column < SIDE; column++) {
+                mCells[row * SIDE + column] = (cell(rows, column, row - 1)
+                        + 2 * cell(rows, column, row) + cell(rows, column, row + 1)) / 4;
+            }
+        }
+    }
+
+    // photos per cell at a pixel of the tile, interpolated between the cell centers
+    public float sample(int x, int y) {
+        float u = (x + 0.5f) / CELL_SIZE - 0.5f + MARGIN;
+        float v = (y + 0.5f) / CELL_SIZE - 0.5f + MARGIN;
+        int column = (int) u;
+        int row = (int) v;
+        float fx = u - column;
+        float fy = v - row;
+        float top = cell(mCells, column, row) * (1 - fx) + cell(mCells, column + 1, row) * fx;
+        float bottom = cell(mCells, column, row + 1) * (1 - fx)
+                + cell(mCells, column + 1, row + 1) * fx;
+        return top * (1 - fy) + bottom * fy;
+    }
+
+    /**
+     * The tiles of a zoom level whose grids count a photo at the position, as
+     * {@code { minX, maxX, minY, maxY }}. These are the tiles to redraw when it changes.
+     */
+    public static int[] getTileRange(double latitude, double longitude, int zoom) {
+        double worldSize = getWorldSize(zoom);
+        double x = GridIndex.projectX(longitude) * worldSize;
+        double y = GridIndex.projectY(latitude) * worldSize;
+        int reach = MARGIN * CELL_SIZE;
+        int last = (1 << zoom) - 1;
+        return new int[] {
+                toTile(x - reach, last), toTile(x + reach, last),
+                toTile(y - reach, last), toTile(y + reach, last) };
+    }
+
+    private double toWorld(double pixel) {
+        return Math.max(0, Math.min(1, pixel / mWorldSize));
+    }
+
+    private static double getWorldSize(int zoom) {
+        return (double) TILE_SIZE * (1L << zoom);
+    }
+
+    private static int toTile(double pixel, int last) {
+        return (int) Math.max(0, Math.min(last, Math.floor(pixel / TILE_SIZE)));
+    }
+
+    // zero outside of the grid
+    private static float cell(float[] cells, int column, int row) {
+        if (column < 0 || column >= SIDE || row < 0 || row >= SIDE) return 0;
+        return cells[row * SIDE + column];
+    }
+}
@@ -0,0 +1,230 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.density;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+import com.tbaek.travelstory.database.DatabaseHelper;
+import com.tbaek.travelstory.database.MappedCursor;
+import com.tbaek.travelstory.database.Projection;
+import com.tbaek.travelstory.database.RowMapper;
+import com.tbaek.travelstory.metrics.Counter;
+import com.tbaek.travelstory.metrics.Metrics;
+import com.tbaek.travelstory.metrics.Timer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link TileProvider} that draws the density of the stored photos, for the zoom levels where
+ * markers would be too many to render. The map calls it on its own worker threads.
+ *
+ * A tile is computed from the coordinates in the database and then kept in a {@link TileCache}
+ * on disk, so panning and restarting read files instead. A change of the photos only drops the
+ * tiles around its position, see {@link #invalidate(Collection)}.
+ */
+public class DensityTileProvider implements TileProvider {
+    private static final String TAG = "DensityTileProvider";
+
+    // photos per cell that get the full color, the scale is logarithmic up to there
+    private static final float SATURATION = 64;
+    private static final int PALETTE_SIZE = 256;
+    private static final int MIN_ALPHA = 0x50;
+    private static final int MAX_ALPHA = 0xD0;
+
+    private static final String[] COLUMNS = {
+            DatabaseHelper.COLUMN_LAT, DatabaseHelper.COLUMN_LNG };
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final Timer RENDER_TIMER = Metrics.timer("render.tile.density");
+    private static final Counter CACHE_HITS = Metrics.counter("tile.cache.hit");
+
+    private final DatabaseHelper mDb;
+    private final TileCache mCache;
+    private final int mMaxZoom;
+    private final int[] mPalette;
+
+    // Bumped by every invalidation. A tile read or computed while the generation changed may
+    // be from before the change, it is neither returned from the cache nor kept in it. Only
+    // the counter is locked, the files are read and written outside of it.
+    private final Object mLock = new Object();
+    private long mGeneration;
+
+    // tiles are drawn up to maxZoom, from lowColor where there are few photos to highColor
+    public DensityTileProvider(DatabaseHelper db, File directory, int maxZoom, int lowColor,
+                               int highColor) {
+        mDb = db;
+        mCache = new TileCache(directory);
+        mMaxZoom = maxZoom;
+        mPalette = createPalette(lowColor, highColor);
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom) {
+        if (zoom > mMaxZoom) return NO_TILE;
+        long generation = getGeneration();
+        try {
+            byte[] cached = mCache.read(zoom, x, y);
+            if (cached != null && generation == getGeneration()) {
+                CACHE_HITS.increment();
+                return toTile(cached);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read tile " + zoom + "/" + x + "/" + y, e);
+        }
+        byte[] data;
+        long start = RENDER_TIMER.start();
+        try {
+            data = render(x, y, zoom);
+        } catch (SQLException | IllegalStateException e) {
+            // The database is closed underneath us when the activity goes away, the map asks
+            // again for a null tile
+            Log.w(TAG, "Could not draw tile " + zoom + "/" + x + "/" + y, e);
+            return null;
+        } finally {
+            RENDER_TIMER.stop(start);
+        }
+        if (generation == getGeneration()) {
+            try {
+                mCache.write(zoom, x, y, data);
+                // an invalidation that deleted the tile before it was written drops it here
+                if (generation != getGeneration()) mCache.delete(zoom, x, y);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not cache tile " + zoom + "/" + x + "/" + y, e);
+            }
+        }
+        return toTile(data);
+    }
+
+    /**
+     * Drops the cached tiles that show any of the positions, call it once the change has been
+     * committed. The map keeps its own copies until {@code TileOverlay.clearTileCache()}.
+     */
+    public void invalidate(Collection<LatLng> positions) {
+        // photos of one trip share most of their tiles
+        Set<Long> tiles = new HashSet<Long>();
+        for (LatLng position : positions) {
+            for (int zoom = 0; zoom <= mMaxZoom; zoom++) {
+                int[] range = DensityGrid.getTileRange(position.latitude, position.longitude,
+                        zoom);
+                for (int x = range[0]; x <= range[1]; x++) {
+                    for (int y = range[2]; y <= range[3]; y++) {
+                        tiles.add(((long) zoom << 58) | ((long) x << 29) | y);
+                    }
+                }
+            }
+        }
+        synchronized (mLock) {
+            mGeneration++;
+        }
+        for (long tile : tiles) {
+            mCache.delete((int) (tile >>> 58), (int) (tile >>> 29) & 0x1FFFFFFF,
+                    (int) tile & 0x1FFFFFFF);
+        }
+    }
+
+    private long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    private byte[] render(int x, int y, int zoom) {
+        DensityGrid grid = new DensityGrid(x, y, zoom);
+        LatLngBounds bounds = new LatLngBounds(new LatLng(grid.getSouth(), grid.getWest()),
+                new LatLng(grid.getNorth(), grid.getEast()));
+        MappedCursor<Void> cursor = mDb.getImagesInBounds(bounds,
+                new Projection<Void>(COLUMNS, new GridCounter(grid)));
+        try {
+            while (cursor.moveToNext()) {
+                cursor.get();
+            }
+        } finally {
+            cursor.close();
+        }
+        if (grid.getCount() == 0) return EMPTY;
+
+        grid.blur();
+        int size = DensityGrid.TILE_SIZE;
+        int[] pixels = new int[size * size];
+        double scale = (PALETTE_SIZE - 1) / Math.log1p(SATURATION);
+        for (int py = 0; py < size; py++) {
+            for (int px = 0; px < size; px++) {
+                float density = grid.sample(px, py);
+                if (density <= 0) continue;
+                int level = (int) Math.ceil(Math.log1p(density) * scale);
+                pixels[py * size + px] = mPalette[Math.min(PALETTE_SIZE - 1, level)];
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 0, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private static Tile toTile(byte[] data) {
+        if (data.length == 0) return NO_TILE;
+        return new Tile(DensityGrid.TILE_SIZE, DensityGrid.TILE_SIZE, data);
+    }
+
+    // index 0 stays transparent, the rest fades from the low color to the high color
+    private static int[] createPalette(int low, int high) {
+        int[] palette = new int[PALETTE_SIZE];
+        for (int i = 1; i < PALETTE_SIZE; i++) {
+            float t = (float) i / (PALETTE_SIZE - 1);
+            palette[i] = Color.argb(
+                    Math.round(MIN_ALPHA + (MAX_ALPHA - MIN_ALPHA) * t),
+                    Math.round(Color.red(low) + (Color.red(high) - Color.red(low)) * t),
+                    Math.round(Color.green(low) + (Color.green(high) - Color.green(low)) * t),
+                    Math.round(Color.blue(low) + (Color.blue(high) - Color.blue(low)) * t));
+        }
+        return palette;
+    }
+
+    // adds every row to the grid as it is read, there is nothing to hand back
+    private static class GridCounter implements RowMapper<Void> {
+        private final DensityGrid mGrid;
+        private int mLatitude = -1;
+        private int mLongitude;
+
+        GridCounter(DensityGrid grid) {
+            mGrid = grid;
+        }
+
+        @Override
+        public Void map(Cursor cursor) {
+            if (mLatitude < 0) {
+                mLatitude = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_LAT);
+                mLongitude = cursor.getColumnIndexOrThrow(DatabaseHelper.COLUMN_LNG);
+            }
+            mGrid.add(cursor.getDouble(mLatitude), cursor.getDouble(mLongitude));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.density;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Encoded tiles on disk, one file per tile under {@code zoom/x/y}. A tile without anything to
+ * draw is kept as an empty file, so it is not computed again either.
+ */
+class TileCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+
+    TileCache(File directory) {
+        mDirectory = directory;
+    }
+
+    // the cached bytes, or null if the tile has not been stored
+    byte[] read(int zoom, int x, int y) throws IOException {
+        File file = getFile(zoom, x, y);
+        if (!file.isFile()) return null;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) throw new IOException("Truncated tile " + file);
+                read += count;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    // written to a temporary file first, readers never see half a tile
+    void write(int zoom, int x, int y, byte[] data) throws IOException {
+        File file = getFile(zoom, x, y);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        File temp = new File(parent, file.getName() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move " + temp + " to " + file);
+        }
+    }
+
+    boolean delete(int zoom, int x, int y) {
+        return getFile(zoom, x, y).delete();
+    }
+
+    private File getFile(int zoom, int x, int y) {
+        return new File(mDirectory, zoom + File.separator + x + File.separator + y);
+    }
+}
@@ -0,0 +1,87 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values in power of two buckets. Recording is lock free and
+ * allocation free, so it can sit on hot paths; percentiles are exact to within a factor of two.
+ */
+public class Histogram {
+    private static final int BUCKETS = 64;
+
+    // bucket b holds the values in [2^(b-1), 2^b), bucket 0 holds zero
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    Histogram() {
+    }
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // lost the race against another recording, try again
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    // upper bound of the bucket the percentile falls into, capped at the largest value seen
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += mBuckets.get(b);
+            if (seen >= rank) {
+                return b == BUCKETS - 1 ? mMax.get() : Math.min(mMax.get(), (1L << b) - 1);
+            }
+        }
+        return mMax.get();
+    }
+
+    // one line summary, values are divided by scale, e.g. 1e6 to show nanoseconds as ms
+    String format(double scale) {
+        return String.format(Locale.US, "count=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                getCount(), getMean() / scale, getPercentile(50) / scale,
+                getPercentile(90) / scale, getPercentile(99) / scale, getMax() / scale);
+    }
+}
@@ -0,0 +1,99 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.metrics;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process wide registry of timers, counters, histograms and gauges.
+ *
+ * Metrics are created on first use and live as long as the process. Hot paths keep the
+ * returned instance in a static field instead of looking it up by name every time.
+ * {@link #dump(PrintWriter)} writes everything out, the activity hooks it into
+ * {@code adb shell dumpsys activity com.tbaek.travelstory}.
+ */
+public final class Metrics {
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    public interface Gauge {
+        // read when the metrics are dumped
+        long getValue();
+    }
+
+    // sorted so the dump is easy to scan, guarded by the class
+    private static final Map<String, Timer> sTimers = new TreeMap<String, Timer>();
+    private static final Map<String, Counter> sCounters = new TreeMap<String, Counter>();
+    private static final Map<String, Histogram> sHistograms = new TreeMap<String, Histogram>();
+    private static final Map<String, Gauge> sGauges = new TreeMap<String, Gauge>();
+
+    private Metrics() {
+    }
+
+    public static synchronized Timer timer(String name) {
+        Timer timer = sTimers.get(name);
+        if (timer == null) {
+            timer = new Timer(name);
+            sTimers.put(name, timer);
+        }
+        return timer;
+    }
+
+    public static synchronized Counter counter(String name) {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            sCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    public static synchronized Histogram histogram(String name) {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            sHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    // replaces an earlier gauge of the same name, e.g. the one of a destroyed activity
+    public static synchronized void gauge(String name, Gauge gauge) {
+        sGauges.put(name, gauge);
+    }
+
+    public static synchronized void dump(PrintWriter writer) {
+        writer.println("Timers (ms):");
+        for (Map.Entry<String, Timer> entry : sTimers.entrySet()) {
+            writer.println("  " + entry.getKey() + ": " +
+                    entry.getValue().getHistogram().format(NANOS_PER_MILLI));
+        }
+        writer.println("Histograms:");
+        for (Map.Entry<String, Histogram> entry : sHistograms.entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue().format(1));
+        }
+        writer.println("Counters:");
+        for (Map.Entry<String, Counter> entry : sCounters.entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue().getCount());
+        }
+        writer.println("Gauges:");
+        for (Map.Entry<String, Gauge> entry : sGauges.entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue().getValue());
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,55 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.metrics;
+
+import android.os.Trace;
+
+/**
+ * Measures how long a section of code takes and marks it as a {@link Trace} section, so it
+ * shows up in systrace as well. Start and stop on the same thread:
+ *
+ * <pre>
+ * long start = TIMER.start();
+ * try {
+ *     ...
+ * } finally {
+ *     TIMER.stop(start);
+ * }
+ * </pre>
+ */
+public class Timer {
+    private final String mName;
+    private final Histogram mHistogram = new Histogram();
+
+    Timer(String name) {
+        mName = name;
+    }
+
+    public long start() {
+        Trace.beginSection(mName);
+        return System.nanoTime();
+    }
+
+    public void stop(long start) {
+        mHistogram.record(System.nanoTime() - start);
+        Trace.endSection();
+    }
+
+    // durations in nanoseconds
+    public Histogram getHistogram() {
+        return mHistogram;
+    }
+}
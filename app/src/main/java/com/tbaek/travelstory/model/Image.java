@@ -1,24 +1,21 @@
 package com.tbaek.travelstory.model;
 
-import android.graphics.Bitmap;
-
 import com.google.android.gms.maps.model.LatLng;
 import com.google.maps.android.clustering.ClusterItem;
 
 
-public class Image implements ClusterItem {
-    public final String place;
-    public final Bitmap mImage;
-    private final LatLng mPosition;
-    private final String mImageId;
+// The bitmap is not kept here, it is looked up by id in the BitmapCache when rendered.
+// Images on the map are views into an ImageIndex, create() makes one that stands on its own.
+public abstract class Image implements ClusterItem {
 
-    public Image(String id, String place, LatLng position, Bitmap pictureResource) {
-        this.place = place;
-        mPosition = position;
-        mImage = pictureResource;
-        mImageId = id;
+    public static Image create(String id, String place, LatLng position) {
+        return new Detached(id, place, position);
     }
 
+    public abstract String getId();
+
+    public abstract String getPlace();
+
     @Override
     public String getTitle() {
         return null;
@@ -29,10 +26,30 @@ public class Image implements ClusterItem {
         return null;
     }
 
-    @Override
-    public LatLng getPosition() {
-        return mPosition;
+    private static class Detached extends Image {
+        private final String mImageId;
+        private final String mPlace;
+        private final LatLng mPosition;
+
+        Detached(String id, String place, LatLng position) {
+            mImageId = id;
+            mPlace = place;
+            mPosition = position;
+        }
+
+        @Override
+        public String getId() {
+            return mImageId;
+        }
+
+        @Override
+        public String getPlace() {
+            return mPlace;
+        }
+
+        @Override
+        public LatLng getPosition() {
+            return mPosition;
+        }
     }
-
-    public String getId() { return mImageId; }
 }
@@ -0,0 +1,350 @@
+package com.tbaek.travelstory.model;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+
+// The images on the map, stored column by column in primitive arrays instead of one object
+// graph per image. An image is a slot: its UUID id packed into two longs, its position in
+// fixed point and the index of its place name in a table every image of a place shares.
+// The Image handed out for a slot is a view that only materialises the id, place and LatLng
+// when they are read, so strings and positions exist for what is rendered and nothing else.
+//
+// Slots of removed images are reused. A view must be taken out of the cluster manager before
+// its image is removed, or it ends up pointing at whatever takes its slot next. Every reuse
+// bumps the generation of the slot, so a view of the old image never equals one of the new.
+public class ImageIndex {
+    // 1e-7 degrees, about a centimetre, still fits +-180 into an int
+    static final double FIXED_POINT_SCALE = 1e7;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int FREE = -2;
+    private static final int NO_PLACE = -1;
+
+    // columns, indexed by slot
+    private long[] mIdHigh = new long[INITIAL_CAPACITY];
+    private long[] mIdLow = new long[INITIAL_CAPACITY];
+    private int[] mLatitude = new int[INITIAL_CAPACITY];
+    private int[] mLongitude = new int[INITIAL_CAPACITY];
+    private int[] mPlace = new int[INITIAL_CAPACITY];
+    private int[] mGeneration = new int[INITIAL_CAPACITY];
+    // ids that are not canonical UUIDs, only allocated once one shows up
+    private String[] mRawIds;
+    private final Map<String, Integer> mRawIdSlots = new HashMap<String, Integer>();
+
+    // place names are few and repeat, they are kept until the index is cleared
+    private final List<String> mPlaces = new ArrayList<String>();
+    private final Map<String, Integer> mPlaceIndex = new HashMap<String, Integer>();
+
+    // open addressing over the packed ids, holds slot + 1 and 0 for an empty bucket
+    private int[] mTable = new int[INITIAL_CAPACITY * 2];
+    private int[] mFreeSlots = new int[INITIAL_CAPACITY];
+    private int mFreeCount;
+    private int mSlotCount;
+    private int mSize;
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    // adds the image, or moves and renames it if the id is already in the index
+    public synchronized Image put(String id, String place, double latitude, double longitude) {
+        int slot = find(id);
+        if (slot < 0) {
+            slot = allocate();
+            setId(slot, id);
+            mSize++;
+        }
+        mLatitude[slot] = toFixed(latitude);
+        mLongitude[slot] = toFixed(longitude);
+        mPlace[slot] = intern(place);
+        return newItem(slot);
+    }
+
+    public synchronized Image get(String id) {
+        int slot = find(id);
+        return slot < 0 ? null : newItem(slot);
+    }
+
+    public synchronized boolean contains(String id) {
+        return find(id) >= 0;
+    }
+
+    public synchronized boolean remove(String id) {
+        int slot = find(id);
+        if (slot < 0) return false;
+        release(slot);
+        return true;
+    }
+
+    public synchronized boolean remove(Image image) {
+        if (!(image instanceof Item) || ((Item) image).mIndex != this) {
+            return remove(image.getId());
+        }
+        Item item = (Item) image;
+        int slot = item.mSlot;
+        if (mPlace[slot] == FREE || mGeneration[slot] != item.mGeneration) return false;
+        release(slot);
+        return true;
+    }
+
+    // Views that are still around read no place anymore, the place table starts over so
+    // reloading the map again and again does not keep every place ever shown
+    public synchronized void clear() {
+        Arrays.fill(mPlace, 0, mSlotCount, FREE);
+        mPlaces.clear();
+        mPlaceIndex.clear();
+        Arrays.fill(mTable, 0);
+        mRawIds = null;
+        mRawIdSlots.clear();
+        mSlotCount = 0;
+        mFreeCount = 0;
+        mSize = 0;
+    }
+
+    // the images outside of the bounds; west is greater than east for bounds across 180
+    public synchronized List<Image> findOutside(double south, double west, double north,
+                                                double east) {
+        int s = toFixed(south);
+        int w = toFixed(west);
+        int n = toFixed(north);
+        int e = toFixed(east);
+        boolean wraps = w > e;
+        List<Image> outside = new ArrayList<Image>();
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mPlace[slot] == FREE) continue;
+            int lat = mLatitude[slot];
+            int lng = mLongitude[slot];
+            boolean inLongitude = wraps ? lng >= w || lng <= e : lng >= w && lng <= e;
+            if (lat < s || lat > n || !inLongitude) {
+                outside.add(newItem(slot));
+            }
+        }
+        return outside;
+    }
+
+    // the number of distinct place names held
+    synchronized int getPlaceCount() {
+        return mPlaces.size();
+    }
+
+    synchronized String getId(int slot) {
+        if (mRawIds != null && mRawIds[slot] != null) {
+            return mRawIds[slot];
+        }
+        return new UUID(mIdHigh[slot], mIdLow[slot]).toString();
+    }
+
+    synchronized String getPlace(int slot) {
+        int place = mPlace[slot];
+        return place >= 0 ? mPlaces.get(place) : null;
+    }
+
+    synchronized LatLng getPosition(int slot) {
+        return new LatLng(mLatitude[slot] / FIXED_POINT_SCALE, mLongitude[slot] / FIXED_POINT_SCALE);
+    }
+
+    static int toFixed(double degrees) {
+        return (int) Math.round(degrees * FIXED_POINT_SCALE);
+    }
+
+    // the UUID of a canonical id, or null if the id would not survive the round trip
+    private static UUID parseId(String id) {
+        if (id == null || id.length() != 36) return null;
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private int find(String id) {
+        UUID uuid = parseId(id);
+        if (uuid == null) {
+            Integer slot = mRawIdSlots.get(id);
+            return slot != null ? slot : -1;
+        }
+        long high = uuid.getMostSignificantBits();
+        long low = uuid.getLeastSignificantBits();
+        int mask = mTable.length - 1;
+        for (int bucket = hash(high, low) & mask; ; bucket = (bucket + 1) & mask) {
+            int entry = mTable[bucket];
+            if (entry == 0) return -1;
+            int slot = entry - 1;
+            if (mIdHigh[slot] == high && mIdLow[slot] == low && !isRaw(slot)) return slot;
+        }
+    }
+
+    private boolean isRaw(int slot) {
+        return mRawIds != null && mRawIds[slot] != null;
+    }
+
+    private void setId(int slot, String id) {
+        UUID uuid = parseId(id);
+        if (uuid == null) {
+            if (mRawIds == null) {
+                mRawIds = new String[mIdHigh.length];
+            }
+            mRawIds[slot] = id;
+            mRawIdSlots.put(id, slot);
+            return;
+        }
+        if (mRawIds != null) {
+            mRawIds[slot] = null;
+        }
+        mIdHigh[slot] = uuid.getMostSignificantBits();
+        mIdLow[slot] = uuid.getLeastSignificantBits();
+        if ((mSize + 1) * 2 > mTable.length) {
+            rehash(mTable.length * 2);
+        }
+        insert(slot);
+    }
+
+    private void insert(int slot) {
+        int mask = mTable.length - 1;
+        int bucket = hash(mIdHigh[slot], mIdLow[slot]) & mask;
+        while (mTable[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        mTable[bucket] = slot + 1;
+    }
+
+    private void rehash(int capacity) {
+        mTable = new int[capacity];
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mPlace[slot] != FREE && !isRaw(slot)) {
+                insert(slot);
+            }
+        }
+    }
+
+    private int allocate() {
+        if (mFreeCount > 0) {
+            int slot = mFreeSlots[--mFreeCount];
+            mGeneration[slot]++;
+            return slot;
+        }
+        if (mSlotCount == mIdHigh.length) {
+            int capacity = mSlotCount * 2;
+            mIdHigh = Arrays.copyOf(mIdHigh, capacity);
+            mIdLow = Arrays.copyOf(mIdLow, capacity);
+            mLatitude = Arrays.copyOf(mLatitude, capacity);
+            mLongitude = Arrays.copyOf(mLongitude, capacity);
+            mPlace = Arrays.copyOf(mPlace, capacity);
+            mGeneration = Arrays.copyOf(mGeneration, capacity);
+            if (mRawIds != null) {
+                mRawIds = Arrays.copyOf(mRawIds, capacity);
+            }
+        }
+        // slots handed out again after clear() count as reused as well
+        mGeneration[mSlotCount]++;
+        return mSlotCount++;
+    }
+
+    private Item newItem(int slot) {
+        return new Item(this, slot, mGeneration[slot]);
+    }
+
+    private void release(int slot) {
+        if (isRaw(slot)) {
+            mRawIdSlots.remove(mRawIds[slot]);
+        } else {
+            unlink(slot);
+        }
+        // the id stays readable for views that are still on their way out
+        mPlace[slot] = FREE;
+        if (mFreeCount == mFreeSlots.length) {
+            mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeCount * 2);
+        }
+        mFreeSlots[mFreeCount++] = slot;
+        mSize--;
+    }
+
+    // linear probing delete, later entries of the run are shifted back into the gap
+    private void unlink(int slot) {
+        int mask = mTable.length - 1;
+        int bucket = hash(mIdHigh[slot], mIdLow[slot]) & mask;
+        while (mTable[bucket] != slot + 1) {
+            bucket = (bucket + 1) & mask;
+        }
+        int gap = bucket;
+        for (int next = (gap + 1) & mask; mTable[next] != 0; next = (next + 1) & mask) {
+            int moved = mTable[next] - 1;
+            int home = hash(mIdHigh[moved], mIdLow[moved]) & mask;
+            // the entry may fill the gap if its home bucket is not between the gap and itself
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                mTable[gap] = mTable[next];
+                gap = next;
+            }
+        }
+        mTable[gap] = 0;
+    }
+
+    private int intern(String place) {
+        if (place == null) return NO_PLACE;
+        Integer index = mPlaceIndex.get(place);
+        if (index == null) {
+            index = mPlaces.size();
+            mPlaces.add(place);
+            mPlaceIndex.put(place, index);
+        }
+        return index;
+    }
+
+    private static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    // Two views of the same slot and generation are equal, the cluster manager finds its items
+    // by them. A view of an image that was removed stays different from its slot's next image.
+    private static class Item extends Image {
+        private final ImageIndex mIndex;
+        private final int mSlot;
+        private final int mGeneration;
+
+        Item(ImageIndex index, int slot, int generation) {
+            mIndex = index;
+            mSlot = slot;
+            mGeneration = generation;
+        }
+
+        @Override
+        public String getId() {
+            return mIndex.getId(mSlot);
+        }
+
+        @Override
+        public String getPlace() {
+            return mIndex.getPlace(mSlot);
+        }
+
+        @Override
+        public LatLng getPosition() {
+            return mIndex.getPosition(mSlot);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Item)) return false;
+            Item other = (Item) o;
+            return mIndex == other.mIndex && mSlot == other.mSlot
+                    && mGeneration == other.mGeneration;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mSlot + mGeneration;
+        }
+    }
+}
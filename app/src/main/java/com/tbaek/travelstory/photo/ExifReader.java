@@ -0,0 +1,99 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.photo;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.support.media.ExifInterface;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Reads where and when a photo was taken from its EXIF header. Only the header is parsed,
+ * the pixels are never decoded, so this is cheap enough to run over thousands of photos.
+ */
+public class ExifReader {
+    // EXIF stores local time without a zone
+    private static final String DATE_TIME_FORMAT = "yyyy:MM:dd HH:mm:ss";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ContentResolver mResolver;
+
+    public ExifReader(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    public Metadata read(Uri uri) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        try {
+            return read(new BufferedInputStream(in, BUFFER_SIZE));
+        } finally {
+            in.close();
+        }
+    }
+
+    public static Metadata read(InputStream in) throws IOException {
+        ExifInterface exif = new ExifInterface(in);
+        float[] latLong = new float[2];
+        boolean hasLocation = exif.getLatLong(latLong);
+        String dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL);
+        if (dateTime == null) {
+            dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME);
+        }
+        return new Metadata(hasLocation ? Double.valueOf(latLong[0]) : null,
+                hasLocation ? Double.valueOf(latLong[1]) : null, parseDateTime(dateTime));
+    }
+
+    // milliseconds since the epoch in the device's time zone, null if missing or malformed
+    static Long parseDateTime(String dateTime) {
+        if (dateTime == null) return null;
+        SimpleDateFormat format = new SimpleDateFormat(DATE_TIME_FORMAT, Locale.US);
+        format.setLenient(false);
+        try {
+            return format.parse(dateTime.trim()).getTime();
+        } catch (ParseException e) {
+            // cameras without a clock write "0000:00:00 00:00:00" or blanks
+            return null;
+        }
+    }
+
+    /**
+     * What the header had to say, every field is null when it is missing.
+     */
+    public static class Metadata {
+        public final Double latitude;
+        public final Double longitude;
+        public final Long dateTaken;
+
+        Metadata(Double latitude, Double longitude, Long dateTaken) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.dateTaken = dateTaken;
+        }
+
+        public boolean hasLocation() {
+            return latitude != null && longitude != null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.photo;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import com.tbaek.travelstory.metrics.Metrics;
+import com.tbaek.travelstory.metrics.Timer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes picked photos at the resolution they are stored at, never at the full sensor
+ * resolution.
+ *
+ * The bounds are read first, then the photo is decoded with a power of two sample size and
+ * scaled the rest of the way while decoding. The sample size also keeps the decoded bitmap
+ * under a memory ceiling, so a huge panorama comes out smaller instead of running out of
+ * memory. Blocks on I/O, call it off the main thread.
+ */
+public class PhotoDecoder {
+    // Longest side of a stored photo in pixels
+    public static final int DEFAULT_MAX_DIMENSION = 2048;
+    private static final int BYTES_PER_PIXEL = 4;
+    // Share of the app's memory class a single decode may take up
+    private static final int MEMORY_CLASS_DIVISOR = 4;
+
+    private static final Timer DECODE_TIMER = Metrics.timer("decode.photo");
+
+    private final ContentResolver mResolver;
+    private final int mMaxDimension;
+    private final long mMaxBytes;
+
+    public PhotoDecoder(ContentResolver resolver, int maxDimension, long maxBytes) {
+        mResolver = resolver;
+        mMaxDimension = maxDimension;
+        mMaxBytes = maxBytes;
+    }
+
+    public static long getDefaultMaxBytes(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return (long) am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+    }
+
+    public Bitmap decode(Uri uri) throws IOException {
+        long start = DECODE_TIMER.start();
+        try {
+            return decodeSampled(uri);
+        } finally {
+            DECODE_TIMER.stop(start);
+        }
+    }
+
+    private Bitmap decodeSampled(Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + uri);
+        }
+
+        int width = options.outWidth;
+        int height = options.outHeight;
+        int sampleSize = computeSampleSize(width, height, mMaxDimension, mMaxBytes);
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        // The sample size only goes in powers of two, the density ratio scales the rest
+        int sampledLongest = Math.max(width, height) / sampleSize;
+        if (sampledLongest > mMaxDimension) {
+            options.inScaled = true;
+            options.inDensity = sampledLongest;
+            options.inTargetDensity = mMaxDimension;
+        }
+        Bitmap bitmap = decodeStream(uri, options);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + uri);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    // smallest power of two that brings the longest side under twice maxDimension, the decoder
+    // scales the rest of the way; larger while the sampled bitmap would exceed maxBytes
+    static int computeSampleSize(int width, int height, int maxDimension, long maxBytes) {
+        int sampleSize = 1;
+        while (Math.max(width, height) / sampleSize >= maxDimension * 2
+                || (long) (width / sampleSize) * (height / sampleSize) * BYTES_PER_PIXEL > maxBytes) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
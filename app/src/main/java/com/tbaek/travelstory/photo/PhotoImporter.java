@@ -0,0 +1,319 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.photo;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.tbaek.travelstory.BitmapCache;
+import com.tbaek.travelstory.database.ContentHash;
+import com.tbaek.travelstory.database.DatabaseHelper;
+import com.tbaek.travelstory.database.DatabaseUtil;
+import com.tbaek.travelstory.database.DatabaseWriter;
+import com.tbaek.travelstory.database.ImageCodec;
+import com.tbaek.travelstory.database.ImageMetadata;
+import com.tbaek.travelstory.database.ImageRecord;
+import com.tbaek.travelstory.model.Image;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports a selection of photos in one go.
+ *
+ * Each photo is placed where its EXIF header says it was taken, or at the selected place if
+ * it has no location, and is named after the selected place either way. A photo whose
+ * {@link ContentHash} is stored already only gets a row that shares the stored bytes. Any other
+ * is decoded, thumbnailed and encoded on a small worker pool, and its bytes are written to the
+ * image store right away, so only the thumbnails stay in memory. The rows are inserted in a
+ * single transaction on the {@link DatabaseWriter} once the last photo is done. Selections of
+ * thousands of photos are committed in several transactions instead, whenever the waiting
+ * thumbnails reach {@link #MAX_PENDING_BYTES}.
+ * A cancelled import removes the files it wrote that were not committed yet.
+ */
+public class PhotoImporter {
+    private static final String TAG = "PhotoImporter";
+
+    // Every worker decodes one photo at a time, each within the decoder's memory ceiling
+    private static final int MAX_WORKERS = 3;
+    // Thumbnails waiting for their rows to be inserted
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    public interface Listener {
+        // delivered on the main thread after every photo, failed ones included
+        void onProgress(int done, int total);
+
+        // delivered on the main thread with the stored images, never after cancel()
+        void onComplete(List<Image> imported);
+    }
+
+    private final ContentResolver mResolver;
+    private final DatabaseHelper mDb;
+    private final DatabaseWriter mWriter;
+    private final BitmapCache mBitmapCache;
+    private final ImageCodec mCodec;
+    private final PhotoDecoder mDecoder;
+    private final ExifReader mExifReader;
+    private final ExecutorService mWorkers;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public PhotoImporter(ContentResolver resolver, DatabaseHelper db, DatabaseWriter writer,
+                         BitmapCache bitmapCache, ImageCodec codec, long maxBytes) {
+        mResolver = resolver;
+        mDb = db;
+        mWriter = writer;
+        mBitmapCache = bitmapCache;
+        mCodec = codec;
+        int workers = getWorkerCount();
+        // the memory ceiling holds for all workers together
+        mDecoder = new PhotoDecoder(resolver, PhotoDecoder.DEFAULT_MAX_DIMENSION,
+                maxBytes / workers);
+        mWorkers = Executors.newFixedThreadPool(workers);
+        mExifReader = new ExifReader(resolver);
+    }
+
+    private static int getWorkerCount() {
+        return Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    // Every photo is named after the place, the location is used for the photos without a
+    // location of their own
+    public Import start(List<Uri> uris, LatLng location, String place, Listener listener) {
+        Import photoImport = new Import(uris.size(), listener);
+        for (Uri uri : uris) {
+            photoImport.submit(uri, location, place);
+        }
+        return photoImport;
+    }
+
+    public void shutdown() {
+        mWorkers.shutdownNow();
+    }
+
+    private ImageRecord importPhoto(Uri uri, LatLng location, String place) throws IOException {
+        String id = UUID.randomUUID().toString();
+        ExifReader.Metadata metadata = readMetadata(uri);
+        if (metadata.hasLocation()) {
+            // Pinned where it was taken, but still named after the selected place: it is what
+            // the photo was imported under and what a search for the trip looks for
+            location = new LatLng(metadata.latitude, metadata.longitude);
+        }
+        String hash = hashPhoto(uri);
+        ImageMetadata stored = mDb.findByContentHash(hash);
+        if (stored != null) {
+            // picked before, the new row shares the stored bytes and thumbnail
+            return ImageRecord.forStoredContent(id, place, location.latitude, location.longitude,
+                    stored, metadata.dateTaken, hash);
+        }
+        Bitmap bitmap = mDecoder.decode(uri);
+        Bitmap thumbnail = DatabaseUtil.getThumbnail(bitmap, mDb.getThumbnailSize());
+        String file = mCodec.isPassthrough()
+                ? storeOriginal(id, uri)
+                : mDb.storeImage(id, DatabaseUtil.getBytes(bitmap, mCodec));
+        mBitmapCache.put(id, thumbnail);
+        return ImageRecord.forStoredImage(id, place, location.latitude, location.longitude,
+                mCodec.getName(), file, DatabaseUtil.getBytes(thumbnail), metadata.dateTaken, hash);
+    }
+
+    // of the file as it was picked, so it matches again without decoding anything
+    private String hashPhoto(Uri uri) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        try {
+            return ContentHash.of(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private ExifReader.Metadata readMetadata(Uri uri) {
+        try {
+            return mExifReader.read(uri);
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            // not every format has EXIF, the photo is still imported at the selected place
+            Log.w(TAG, "No EXIF data in " + uri, e);
+            return new ExifReader.Metadata(null, null, null);
+        }
+    }
+
+    private String storeOriginal(String id, Uri uri) throws IOException {
+        ParcelFileDescriptor pfd = mResolver.openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            throw new IOException("Could not open " + uri);
+        }
+        FileChannel original = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+        try {
+            return mDb.storeImage(id, original);
+        } finally {
+            original.close();
+            pfd.close();
+        }
+    }
+
+    /**
+     * One running import, see {@link #cancel()}.
+     */
+    public class Import {
+        private final int mTotal;
+        private final Listener mListener;
+        private final List<Future<?>> mFutures = new ArrayList<Future<?>>();
+        // guarded by this
+        private List<ImageRecord> mPending = new ArrayList<ImageRecord>();
+        private int mPendingBytes;
+        private int mDone;
+        private boolean mCancelled;
+        private boolean mCommitted;
+        // only touched on the main thread
+        private final List<Image> mImported = new ArrayList<Image>();
+
+        Import(int total, Listener listener) {
+            mTotal = total;
+            mListener = listener;
+        }
+
+        private void submit(final Uri uri, final LatLng location, final String place) {
+            mFutures.add(mWorkers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) return;
+                    ImageRecord record = null;
+                    try {
+                        record = importPhoto(uri, location, place);
+                    } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                        Log.e(TAG, "Could not import " + uri, e);
+                    } finally {
+                        // counted as failed whatever stopped it, the import still completes
+                        finishPhoto(record);
+                    }
+                }
+            }));
+        }
+
+        private synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private void finishPhoto(ImageRecord record) {
+            final int done;
+            List<ImageRecord> batch = null;
+            synchronized (this) {
+                if (mCancelled) {
+                    if (record != null) {
+                        discard(record);
+                    }
+                    return;
+                }
+                if (record != null) {
+                    mPending.add(record);
+                    if (record.thumbnail != null) {
+                        mPendingBytes += record.thumbnail.length;
+                    }
+                }
+                done = ++mDone;
+                if (done == mTotal || mPendingBytes >= MAX_PENDING_BYTES) {
+                    batch = mPending;
+                    mPending = new ArrayList<ImageRecord>();
+                    mPendingBytes = 0;
+                    mCommitted = done == mTotal;
+                }
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        mListener.onProgress(done, mTotal);
+                    }
+                }
+            });
+            if (batch != null) {
+                commit(batch, done == mTotal);
+            }
+        }
+
+        // The writer runs the batches in order, so the last one completes the import. They are
+        // exclusive, so every batch is a commit of its own rather than part of a larger one.
+        private void commit(final List<ImageRecord> records, final boolean last) {
+            mWriter.submitExclusive(new DatabaseWriter.Operation<List<Image>>() {
+                @Override
+                public List<Image> run(DatabaseHelper db) {
+                    long[] rowIds = db.addEntries(records, records.size(), null);
+                    List<Image> imported = new ArrayList<Image>(records.size());
+                    for (int i = 0; i < rowIds.length; i++) {
+                        ImageRecord record = records.get(i);
+                        if (rowIds[i] != -1) {
+                            imported.add(Image.create(record.id, record.place,
+                                    new LatLng(record.latitude, record.longitude)));
+                        }
+                    }
+                    return imported;
+                }
+            }, new DatabaseWriter.Callback<List<Image>>() {
+                @Override
+                public void onComplete(List<Image> imported, Exception error) {
+                    if (error != null) {
+                        Log.e(TAG, "Could not store " + records.size() + " photos", error);
+                    } else {
+                        mImported.addAll(imported);
+                    }
+                    if (last && !isCancelled()) {
+                        mListener.onComplete(mImported);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Stops the workers and removes the photos that were not committed yet. Batches
+         * already handed to the writer stay, they show up with the next load of the map.
+         */
+        public void cancel() {
+            List<ImageRecord> records;
+            synchronized (this) {
+                if (mCommitted || mCancelled) return;
+                mCancelled = true;
+                records = mPending;
+                mPending = new ArrayList<ImageRecord>();
+            }
+            for (Future<?> future : mFutures) {
+                future.cancel(true);
+            }
+            for (ImageRecord record : records) {
+                discard(record);
+            }
+        }
+
+        private void discard(ImageRecord record) {
+            mDb.discardImage(record.file);
+            mBitmapCache.remove(record.id);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.tbaek.travelstory;
+
+import android.graphics.Bitmap;
+
+import com.google.android.gms.maps.model.CameraPosition;
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the snapshot file. Robolectric decodes every image as 100x100, so the icons
+ * are that size and fill the whole atlas.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class StartupSnapshotTest {
+    private static final int ICON_SIZE = 100;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(RuntimeEnvironment.application.getFilesDir(), "snapshot_test");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void read_missingFile_returnsNull() throws Exception {
+        assertNull(StartupSnapshot.read(mFile));
+    }
+
+    @Test
+    public void write_thenRead_keepsCameraAndMarkers() throws Exception {
+        CameraPosition camera = new CameraPosition(new LatLng(37.5, 127), 9.5f, 10, 45);
+        new StartupSnapshot.Builder(camera, 4)
+                .add(new LatLng(37.4, 126.9), 12, null)
+                .add(new LatLng(-33.9, 151.2), 1, null)
+                .build()
+                .write(mFile);
+
+        StartupSnapshot snapshot = StartupSnapshot.read(mFile);
+        assertNotNull(snapshot);
+        assertEquals(camera, snapshot.camera);
+        assertEquals(2, snapshot.markers.size());
+        StartupSnapshot.Marker first = snapshot.markers.get(0);
+        assertEquals(new LatLng(37.4, 126.9), first.position);
+        assertEquals(12, first.count);
+        assertNull(snapshot.getIcon(first));
+        assertEquals(1, snapshot.markers.get(1).count);
+    }
+
+    @Test
+    public void write_thenRead_iconOutlivesTheSnapshot() throws Exception {
+        CameraPosition camera = new CameraPosition(new LatLng(38.7, -9.1), 9.5f, 0, 0);
+        Bitmap saved = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+        saved.eraseColor(0xFF3366CC);
+        StartupSnapshot written = new StartupSnapshot.Builder(camera, 4)
+                .add(new LatLng(38.7, -9.1), 12, saved)
+                .add(new LatLng(41.1, -8.6), 1, null)
+                .build();
+        written.write(mFile);
+        written.recycle();
+
+        StartupSnapshot snapshot = StartupSnapshot.read(mFile);
+        assertNotNull(snapshot);
+        Bitmap icon = snapshot.getIcon(snapshot.markers.get(0));
+        assertNull(snapshot.getIcon(snapshot.markers.get(1)));
+        // as showSnapshot() does once the markers have been added
+        snapshot.recycle();
+
+        assertNotNull(icon);
+        assertFalse(icon.isRecycled());
+        assertEquals(ICON_SIZE, icon.getWidth());
+        assertEquals(ICON_SIZE, icon.getHeight());
+    }
+
+    @Test
+    public void read_truncatedFile_returnsNull() throws Exception {
+        CameraPosition camera = new CameraPosition(new LatLng(0, 0), 2, 0, 0);
+        new StartupSnapshot.Builder(camera, 4).add(new LatLng(1, 1), 3, null).build().write(mFile);
+        long length = mFile.length();
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.getChannel().truncate(length - 8);
+        out.close();
+
+        assertNull(StartupSnapshot.read(mFile));
+    }
+}
@@ -0,0 +1,168 @@
+package com.tbaek.travelstory.clustering;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class GridIndexTest {
+
+    @Test
+    public void zoomZero_mergesEverythingNearby() throws Exception {
+        GridIndex<String> index = new GridIndex<String>();
+        index.add("a", 37.77, -122.42);
+        index.add("b", 37.80, -122.27);
+        index.add("c", 34.05, -118.24);
+
+        Collection<GridIndex.Cell<String>> cells = index.getCells(0);
+        assertEquals(1, cells.size());
+        assertEquals(3, cells.iterator().next().getCount());
+    }
+
+    @Test
+    public void maxZoom_separatesDistantItems() throws Exception {
+        GridIndex<String> index = new GridIndex<String>();
+        index.add("a", 37.77, -122.42);
+        index.add("b", 34.05, -118.24);
+
+        assertEquals(2, index.getCells(index.getMaxZoom()).size());
+    }
+
+    @Test
+    public void countsAddUpOnEveryLevel() throws Exception {
+        GridIndex<Integer> index = new GridIndex<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            index.add(i, -80 + (i * 7919 % 160), -180 + (i * 104729 % 360));
+        }
+        for (int zoom = 0; zoom <= index.getMaxZoom(); zoom++) {
+            int total = 0;
+            for (GridIndex.Cell<Integer> cell : index.getCells(zoom)) {
+                total += cell.getCount();
+                assertEquals(cell.getCount(), index.getItems(cell).size());
+            }
+            assertEquals(1000, total);
+        }
+    }
+
+    @Test
+    public void centroid_isAverageOfItems() throws Exception {
+        GridIndex<String> index = new GridIndex<String>();
+        index.add("a", 10, 10);
+        index.add("b", 10, 12);
+
+        GridIndex.Cell<String> cell = index.getCells(0).iterator().next();
+        assertEquals(11, cell.getLongitude(), 1e-9);
+        assertEquals(10, cell.getLatitude(), 1e-9);
+    }
+
+    @Test
+    public void remove_dropsItemFromAllLevels() throws Exception {
+        GridIndex<String> index = new GridIndex<String>();
+        index.add("a", 10, 10);
+        index.add("b", 20, 20);
+
+        assertTrue(index.remove("a"));
+        assertFalse(index.remove("a"));
+        assertEquals(1, index.size());
+        GridIndex.Cell<String> cell = index.getCells(0).iterator().next();
+        assertEquals(1, cell.getCount());
+        assertEquals("b", index.getItems(cell).get(0));
+    }
+
+    @Test
+    public void remove_matchesIndexBuiltWithoutTheItems() throws Exception {
+        GridIndex<Integer> index = new GridIndex<Integer>();
+        GridIndex<Integer> expected = new GridIndex<Integer>();
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            // a small area so items share cells down to the deepest levels
+            double lat = 48 + random.nextDouble() * 0.01;
+            double lng = 2 + random.nextDouble() * 0.01;
+            index.add(i, lat, lng);
+            if (i % 3 != 0) {
+                expected.add(i, lat, lng);
+            }
+        }
+        for (int i = 0; i < 2000; i += 3) {
+            assertTrue(index.remove(i));
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (int zoom = 0; zoom <= index.getMaxZoom(); zoom++) {
+            List<GridIndex.Cell<Integer>> cells = index.getCells(zoom);
+            List<GridIndex.Cell<Integer>> expectedCells = expected.getCells(zoom);
+            assertEquals(expectedCells.size(), cells.size());
+            for (int i = 0; i < cells.size(); i++) {
+                assertEquals(expectedCells.get(i).getCount(), cells.get(i).getCount());
+                assertEquals(expectedCells.get(i).getLatitude(), cells.get(i).getLatitude(), 1e-9);
+                assertEquals(expectedCells.get(i).getLongitude(), cells.get(i).getLongitude(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void remove_lastButOne_collapsesCellToRemainingItem() throws Exception {
+        GridIndex<String> index = new GridIndex<String>();
+        index.add("a", 10, 10);
+        index.add("b", 10.0001, 10.0001);
+
+        index.remove("a");
+
+        List<GridIndex.Cell<String>> cells = index.getCells(index.getMaxZoom());
+        assertEquals(1, cells.size());
+        assertEquals(10.0001, cells.get(0).getLatitude(), 1e-9);
+        assertEquals(Arrays.asList("b"), index.getItems(cells.get(0)));
+    }
+
+    @Test
+    public void add_existingItem_movesIt() throws Exception {
+        GridIndex<String> index = new GridIndex<String>();
+        index.add("a", 10, 10);
+        index.add("a", -10, -10);
+
+        assertEquals(1, index.size());
+        assertTrue(index.getCells(3, 0, 0, 20, 20).isEmpty());
+        assertEquals(1, index.getCells(3, -20, -20, 0, 0).size());
+    }
+
+    @Test
+    public void rangeQuery_returnsOnlyCellsInBounds() throws Exception {
+        GridIndex<String> index = new GridIndex<String>();
+        index.add("sf", 37.77, -122.42);
+        index.add("tokyo", 35.68, 139.69);
+
+        List<GridIndex.Cell<String>> cells = index.getCells(10, 37, -123, 38, -122);
+        assertEquals(1, cells.size());
+        assertEquals("sf", index.getItems(cells.get(0)).get(0));
+    }
+
+    @Test
+    public void rangeQuery_handlesAntimeridian() throws Exception {
+        GridIndex<String> index = new GridIndex<String>();
+        index.add("fiji", -17.7, 178.0);
+        index.add("samoa", -13.8, -172.1);
+        index.add("london", 51.5, -0.1);
+
+        Set<String> found = new HashSet<String>();
+        for (GridIndex.Cell<String> cell : index.getCells(5, -20, 170, -10, -170)) {
+            found.addAll(index.getItems(cell));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("fiji", "samoa")), found);
+    }
+
+    @Test
+    public void projection_roundTrips() throws Exception {
+        for (double lat = -80; lat <= 80; lat += 10) {
+            assertEquals(lat, GridIndex.unprojectLatitude(GridIndex.projectY(lat)), 1e-9);
+        }
+        for (double lng = -180; lng < 180; lng += 15) {
+            assertEquals(lng, GridIndex.unprojectLongitude(GridIndex.projectX(lng)), 1e-9);
+        }
+    }
+}
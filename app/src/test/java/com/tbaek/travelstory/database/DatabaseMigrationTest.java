@@ -0,0 +1,325 @@
+package com.tbaek.travelstory.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.tbaek.travelstory.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the migrations against a real SQLite file on the local JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DatabaseMigrationTest {
+    private static final String DATABASE_NAME = "travel_story_migration_test_db";
+
+    private Context mContext;
+    private DatabaseHelper mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mDb != null) {
+            mDb.clearAllImages();
+            mDb.close();
+        }
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeFromVersion1_keepsRows() throws Exception {
+        createVersion1(new String[] { "a", "b", "c" });
+
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        List<ImageMetadata> images = getAllImages();
+        assertEquals(3, images.size());
+        for (ImageMetadata image : images) {
+            assertEquals("Place " + image.id, image.place);
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion1_dropsDuplicateIds() throws Exception {
+        createVersion1(new String[] { "a", "a", "b" });
+
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        assertEquals(2, getAllImages().size());
+    }
+
+    @Test
+    public void upgradeFromVersion1_producesSameSchemaAsCreate() throws Exception {
+        createVersion1(new String[0]);
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        String upgraded = dumpSchema(mDb.getReadableDatabase());
+        mDb.close();
+
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        String created = dumpSchema(mDb.getReadableDatabase());
+
+        assertEquals(created, upgraded);
+    }
+
+    @Test
+    public void upgradeFromVersion1_indexesPlaceNames() throws Exception {
+        createVersion1(new String[] { "a", "b" });
+
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        List<ImageMetadata> found = mDb.searchImages("place b", Projection.METADATA, 10);
+        assertEquals(1, found.size());
+        assertEquals("b", found.get(0).id);
+    }
+
+    @Test
+    public void searchIndex_matchesTheMigratedSchema() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        SQLiteDatabase db = mDb.getReadableDatabase();
+
+        List<String> expected = new ArrayList<String>();
+        expected.add(SearchIndex.createTable());
+        expected.addAll(Arrays.asList(SearchIndex.createTriggers()));
+        Collections.sort(expected);
+        List<String> migrated = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master WHERE name = ? OR " +
+                "(type = 'trigger' AND tbl_name = ?)",
+                new String[] { SearchIndex.TABLE, DatabaseHelper.DB_TABLE });
+        try {
+            while (cursor.moveToNext()) {
+                migrated.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(migrated);
+        assertEquals(expected, migrated);
+    }
+
+    @Test
+    public void deleteEntry_removesOnlyThatRow() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDb.addEntry("a", "Place a", 1.0, 2.0, new byte[] { 1 }, null);
+        mDb.addEntry("b", "Place b", 3.0, 4.0, new byte[] { 2 }, null);
+
+        mDb.deleteEntry("a");
+
+        List<ImageMetadata> images = getAllImages();
+        assertEquals(1, images.size());
+        assertEquals("b", images.get(0).id);
+        assertNull(mDb.getImageData("a"));
+        assertArrayEquals(new byte[] { 2 }, mDb.getImageData("b"));
+    }
+
+    @Test
+    public void upgradeFromVersion1_tagsImagesAsPng() throws Exception {
+        createVersion1(new String[] { "a" });
+
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        assertEquals(ImageCodec.PNG, mDb.getImageCodec("a"));
+    }
+
+    @Test
+    public void addEntry_storesCodec() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDb.addEntry("a", "Place a", 1.0, 2.0, ImageCodec.JPEG, new byte[] { 1 }, null);
+
+        assertEquals(ImageCodec.JPEG, mDb.getImageCodec("a"));
+        assertNull(mDb.getImageCodec("b"));
+    }
+
+    @Test
+    public void addEntries_storesDateTaken() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        String file = mDb.storeImage("a", new byte[] { 1 });
+        mDb.addEntries(Arrays.asList(
+                ImageRecord.forStoredImage("a", null, 1.0, 2.0, ImageCodec.JPEG, file, null,
+                        1494754205000L),
+                new ImageRecord("b", "Place b", 3.0, 4.0, new byte[] { 2 }, null)), 10, null);
+
+        assertEquals(Long.valueOf(1494754205000L), mDb.getDateTaken("a"));
+        assertNull(mDb.getDateTaken("b"));
+        assertArrayEquals(new byte[] { 1 }, mDb.getImageData("a"));
+    }
+
+    @Test
+    public void addEntry_sameBytesTwice_storesOneFile() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        byte[] image = new byte[] { 1, 2, 3 };
+        mDb.addEntry("a", "Place a", 1.0, 2.0, image, null);
+        mDb.addEntry("b", "Place b", 3.0, 4.0, image, null);
+
+        String hash = ContentHash.of(image);
+        assertEquals(2, mDb.getContentRefCount(hash));
+        assertEquals(1, countStoredFiles());
+
+        mDb.deleteEntry("a");
+        assertEquals(1, mDb.getContentRefCount(hash));
+        assertArrayEquals(image, mDb.getImageData("b"));
+
+        mDb.deleteEntry("b");
+        assertEquals(0, mDb.getContentRefCount(hash));
+        assertEquals(0, countStoredFiles());
+    }
+
+    @Test
+    public void addEntries_storedContent_dropsTheCopy() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        byte[] image = new byte[] { 4, 5, 6 };
+        String hash = ContentHash.of(image);
+        mDb.addEntries(Arrays.asList(
+                ImageRecord.forStoredImage("a", null, 1.0, 2.0, ImageCodec.JPEG,
+                        mDb.storeImage("a", image), new byte[] { 7 }, null, hash),
+                ImageRecord.forStoredImage("b", null, 1.0, 2.0, ImageCodec.JPEG,
+                        mDb.storeImage("b", image), new byte[] { 7 }, null, hash)), 10, null);
+
+        ImageMetadata stored = mDb.findByContentHash(hash);
+        mDb.addEntries(Arrays.asList(ImageRecord.forStoredContent("c", null, 3.0, 4.0, stored,
+                null, hash)), 10, null);
+
+        assertEquals(3, mDb.getContentRefCount(hash));
+        assertEquals(1, countStoredFiles());
+        assertArrayEquals(image, mDb.getImageData("c"));
+        assertArrayEquals(new byte[] { 7 }, mDb.getThumbnail("c"));
+        assertEquals(ImageCodec.JPEG, mDb.getImageCodec("c"));
+    }
+
+    @Test
+    public void deleteEntry_outerTransactionRolledBack_keepsFile() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        byte[] image = new byte[] { 8, 9 };
+        mDb.addEntry("a", "Place a", 1.0, 2.0, image, null);
+
+        // as inside a DatabaseWriter batch that fails after the delete
+        SQLiteDatabase db = mDb.getWritableDatabase();
+        db.beginTransaction();
+        mDb.deleteEntry("a");
+        assertEquals(1, countStoredFiles());
+        mDb.endTransaction(db, false);
+
+        assertEquals(1, mDb.getContentRefCount(ContentHash.of(image)));
+        assertArrayEquals(image, mDb.getImageData("a"));
+
+        db.beginTransaction();
+        mDb.deleteEntry("a");
+        db.setTransactionSuccessful();
+        mDb.endTransaction(db, true);
+        assertEquals(0, countStoredFiles());
+    }
+
+    @Test
+    public void deleteOrphanedFiles_keepsReferencedFiles() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDb.addEntry("a", "Place a", 1.0, 2.0, new byte[] { 1 }, null);
+        // stored ahead of a row that was never inserted
+        mDb.storeImage("b", new byte[] { 2 });
+        assertEquals(2, countStoredFiles());
+
+        assertEquals(1, mDb.deleteOrphanedFiles());
+        assertEquals(1, countStoredFiles());
+        assertArrayEquals(new byte[] { 1 }, mDb.getImageData("a"));
+    }
+
+    @Test
+    public void getImagesInBounds_filtersAcrossTheAntimeridian() throws Exception {
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDb.addEntry("fiji", "Suva, Fiji", -18.1, 178.4, new byte[] { 1 }, null);
+        mDb.addEntry("samoa", "Apia, Samoa", -13.8, -171.8, new byte[] { 2 }, null);
+        mDb.addEntry("lima", "Lima, Peru", -12.0, -77.0, new byte[] { 3 }, null);
+
+        assertEquals(Arrays.asList("fiji", "samoa"), getIdsInBounds(new LatLngBounds(
+                new LatLng(-20.0, 170.0), new LatLng(-10.0, -170.0))));
+        assertEquals(Arrays.asList("fiji", "lima", "samoa"), getIdsInBounds(new LatLngBounds(
+                new LatLng(-85.0, -180.0), new LatLng(85.0, 180.0 - 1e-9))));
+        assertEquals(Arrays.asList("lima"), getIdsInBounds(new LatLngBounds(
+                new LatLng(-20.0, -80.0), new LatLng(-10.0, -70.0))));
+    }
+
+    private List<String> getIdsInBounds(LatLngBounds bounds) {
+        List<String> ids = new ArrayList<String>();
+        MappedCursor<ImageMetadata> cursor = mDb.getImagesInBounds(bounds, Projection.METADATA);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.get().id);
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private int countStoredFiles() {
+        String[] files = new File(mContext.getFilesDir(), "images_" + DATABASE_NAME).list();
+        return files == null ? 0 : files.length;
+    }
+
+    private List<ImageMetadata> getAllImages() {
+        List<ImageMetadata> images = new ArrayList<ImageMetadata>();
+        for (ImageMetadata image : mDb.getAllImages(Projection.METADATA, PageKey.ID,
+                DatabaseHelper.DEFAULT_PAGE_SIZE)) {
+            images.add(image);
+        }
+        return images;
+    }
+
+    // rows without image data, so the upgrade does not need to decode bitmaps
+    private void createVersion1(String[] ids) {
+        File file = mContext.getDatabasePath(DATABASE_NAME);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.execSQL(Migrations.CREATE_TABLE_V1);
+            for (String id : ids) {
+                ContentValues cv = new ContentValues();
+                cv.put(DatabaseHelper.COLUMN_ID, id);
+                cv.put(DatabaseHelper.COLUMN_PLACE_NAME, "Place " + id);
+                cv.put(DatabaseHelper.COLUMN_LAT, 1.0);
+                cv.put(DatabaseHelper.COLUMN_LNG, 2.0);
+                db.insert(DatabaseHelper.DB_TABLE, null, cv);
+            }
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String dumpSchema(SQLiteDatabase db) {
+        StringBuilder schema = new StringBuilder();
+        Cursor cursor = db.rawQuery("SELECT type, name, sql FROM sqlite_master " +
+                "WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata' ORDER BY name", null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.append(cursor.getString(0)).append(' ')
+                        .append(cursor.getString(1)).append(' ')
+                        .append(cursor.getString(2)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema.toString();
+    }
+}
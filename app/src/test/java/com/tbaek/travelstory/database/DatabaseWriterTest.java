@@ -0,0 +1,76 @@
+package com.tbaek.travelstory.database;
+
+import android.content.Context;
+
+import com.tbaek.travelstory.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes through the writer thread, and what happens to them around its shutdown.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DatabaseWriterTest {
+    private static final String DATABASE_NAME = "travel_story_writer_test_db";
+
+    private Context mContext;
+    private DatabaseHelper mDb;
+    private DatabaseWriter mWriter;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        mWriter = new DatabaseWriter(mDb);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWriter.shutdown().get();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void queuedBeforeShutdown_completes() throws Exception {
+        Future<Void> added = mWriter.addEntry("a", "Place a", 1.0, 2.0, new byte[] { 1 }, null);
+        mWriter.shutdown().get();
+
+        assertNull(added.get());
+    }
+
+    @Test
+    public void submittedAfterShutdown_fails() throws Exception {
+        mWriter.shutdown().get();
+
+        assertFailed(mWriter.addEntry("a", "Place a", 1.0, 2.0, new byte[] { 1 }, null));
+        assertFailed(mWriter.submitExclusive(new DatabaseWriter.Operation<Integer>() {
+            @Override
+            public Integer run(DatabaseHelper db) {
+                return 1;
+            }
+        }, null));
+    }
+
+    private static void assertFailed(Future<?> future) throws InterruptedException {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.tbaek.travelstory.database;
+
+import android.content.Context;
+
+import com.tbaek.travelstory.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exports a library to an archive file and restores it into an empty database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class LibraryArchiveTest {
+    private static final String DATABASE_NAME = "travel_story_archive_test_db";
+
+    private Context mContext;
+    private DatabaseHelper mDb;
+    private DatabaseWriter mWriter;
+    private File mArchive;
+    // the file the rows a and b share
+    private File mSharedFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        mWriter = new DatabaseWriter(mDb);
+        mArchive = new File(mContext.getCacheDir(), "library.archive");
+        byte[] shared = new byte[] { 1, 2, 3 };
+        String sharedFile = mDb.storeImage("a", shared);
+        mSharedFile = new ImageStore(mContext, "images_" + DATABASE_NAME).getFile(sharedFile);
+        mDb.addEntries(Arrays.asList(
+                ImageRecord.forStoredImage("a", "Lisbon, Portugal", 38.7, -9.1, ImageCodec.JPEG,
+                        sharedFile, new byte[] { 7 }, 1494754205000L,
+                        ContentHash.of(shared)),
+                new ImageRecord("b", "Porto, Portugal", 41.1, -8.6, shared, null),
+                new ImageRecord("c", null, 48.9, 2.3, new byte[] { 4, 5 }, new byte[] { 8 })),
+                10, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.clearAllImages();
+        // the writer closes the database
+        mWriter.shutdown().get();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mArchive.delete();
+    }
+
+    @Test
+    public void exportThenRestore_keepsRowsAndImages() throws Exception {
+        LibraryArchive.Result exported = export();
+        assertEquals(3, exported.done);
+        assertEquals(0, exported.failed);
+
+        mDb.clearAllImages();
+        LibraryArchive.Result restored = restore(2, null);
+        assertEquals(3, restored.done);
+        assertEquals(0, restored.skipped);
+
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mDb.getImageData("a"));
+        assertEquals(Long.valueOf(1494754205000L), mDb.getDateTaken("a"));
+        assertEquals(ImageCodec.JPEG, mDb.getImageCodec("a"));
+        assertArrayEquals(new byte[] { 7 }, mDb.getThumbnail("a"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mDb.getImageData("b"));
+        assertArrayEquals(new byte[] { 4, 5 }, mDb.getImageData("c"));
+        assertNull(mDb.getDateTaken("c"));
+        // a and b share their content in the archive and after the restore
+        assertEquals(2, mDb.getContentRefCount(ContentHash.of(new byte[] { 1, 2, 3 })));
+    }
+
+    @Test
+    public void restore_skipsExistingRows() throws Exception {
+        export();
+        mDb.deleteEntry("c");
+
+        LibraryArchive.Result restored = restore(10, null);
+        assertEquals(1, restored.done);
+        assertEquals(2, restored.skipped);
+        assertArrayEquals(new byte[] { 4, 5 }, mDb.getImageData("c"));
+    }
+
+    @Test
+    public void restore_interrupted_resumes() throws Exception {
+        export();
+        mDb.clearAllImages();
+
+        try {
+            restore(1, new DatabaseHelper.ProgressListener() {
+                @Override
+                public void onProgress(int done, int total) {
+                    throw new IllegalStateException("interrupted after the first batch");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // the first batch is committed
+        }
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mDb.getImageData("a"));
+        assertNull(mDb.getImageData("b"));
+
+        LibraryArchive.Result restored = restore(1, null);
+        assertEquals(2, restored.done);
+        assertEquals(1, restored.skipped);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mDb.getImageData("b"));
+    }
+
+    @Test
+    public void export_missingSharedFile_restoresTheSharersWithoutImage() throws Exception {
+        assertTrue(mSharedFile.delete());
+
+        LibraryArchive.Result exported = export();
+        assertEquals(3, exported.done);
+        assertEquals(2, exported.failed);
+
+        mDb.clearAllImages();
+        LibraryArchive.Result restored = restore(10, null);
+        // b does not refer to content that never made it into the archive
+        assertEquals(3, restored.done);
+        assertEquals(0, restored.failed);
+        assertNull(mDb.getImageData("a"));
+        assertNull(mDb.getImageData("b"));
+        assertArrayEquals(new byte[] { 4, 5 }, mDb.getImageData("c"));
+    }
+
+    @Test(expected = IOException.class)
+    public void restore_truncatedArchive_fails() throws Exception {
+        export();
+        RandomAccessFile file = new RandomAccessFile(mArchive, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        restore(10, null);
+    }
+
+    private LibraryArchive.Result export() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mArchive, "rw");
+        try {
+            file.setLength(0);
+            return mDb.exportLibrary(file.getChannel(), null);
+        } finally {
+            file.close();
+        }
+    }
+
+    private LibraryArchive.Result restore(int batchSize, DatabaseHelper.ProgressListener listener)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mArchive, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return mWriter.restoreLibrary(channel, batchSize, listener);
+        } finally {
+            file.close();
+        }
+    }
+}
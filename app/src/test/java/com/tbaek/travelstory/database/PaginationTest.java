@@ -0,0 +1,95 @@
+package com.tbaek.travelstory.database;
+
+import android.content.Context;
+
+import com.tbaek.travelstory.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Keyset pagination and projections against a real SQLite file on the local JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PaginationTest {
+    private static final String DATABASE_NAME = "travel_story_pagination_test_db";
+    private static final int ROWS = 25;
+
+    private Context mContext;
+    private DatabaseHelper mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        List<ImageRecord> records = new ArrayList<ImageRecord>();
+        // inserted in reverse, so id order and rowid order differ
+        for (int i = ROWS - 1; i >= 0; i--) {
+            records.add(new ImageRecord(String.format("id%02d", i), "Place " + i, i, -i,
+                    null, new byte[] { (byte) i }));
+        }
+        mDb.addEntries(records, DatabaseHelper.DEFAULT_BATCH_SIZE, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.clearAllImages();
+        mDb.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void pagesById_coverEveryRowOnce() throws Exception {
+        List<String> ids = new ArrayList<String>();
+        String key = null;
+        int pages = 0;
+        do {
+            Page<ImageMetadata> page = mDb.getImagesPage(Projection.METADATA, PageKey.ID, key, 10);
+            for (ImageMetadata image : page.rows) {
+                ids.add(image.id);
+            }
+            key = page.nextKey;
+            pages++;
+        } while (key != null);
+
+        assertEquals(3, pages);
+        assertEquals(ROWS, ids.size());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(String.format("id%02d", i), ids.get(i));
+        }
+    }
+
+    @Test
+    public void pagesByRowid_followInsertionOrder() throws Exception {
+        List<String> ids = new ArrayList<String>();
+        for (ImageMetadata image : mDb.getAllImages(Projection.METADATA, PageKey.ROWID, 4)) {
+            ids.add(image.id);
+        }
+        assertEquals(ROWS, ids.size());
+        assertEquals("id24", ids.get(0));
+        assertEquals("id00", ids.get(ROWS - 1));
+    }
+
+    @Test
+    public void metadataProjection_leavesThumbnailOut() throws Exception {
+        ImageMetadata image = mDb.getImagesPage(Projection.METADATA, PageKey.ID, null, 1).rows.get(0);
+        assertNull(image.thumbnail);
+        assertEquals(ImageCodec.PNG, image.codec);
+
+        image = mDb.getImagesPage(Projection.METADATA_WITH_THUMBNAIL, PageKey.ID, null, 1).rows.get(0);
+        assertArrayEquals(new byte[] { 0 }, image.thumbnail);
+        assertEquals(0, image.latitude, 0);
+    }
+}
@@ -0,0 +1,119 @@
+package com.tbaek.travelstory.database;
+
+import android.content.Context;
+
+import com.tbaek.travelstory.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The full-text index over place names, against a real SQLite file on the local JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SearchTest {
+    private static final String DATABASE_NAME = "travel_story_search_test_db";
+
+    private Context mContext;
+    private DatabaseHelper mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = new DatabaseHelper(mContext, DATABASE_NAME);
+        List<ImageRecord> records = new ArrayList<ImageRecord>();
+        records.add(new ImageRecord("lisbon", "Praça do Comércio, Lisbon, Portugal", 38.7, -9.1,
+                null, new byte[] { 1 }));
+        records.add(new ImageRecord("porto", "Ribeira, Porto, Portugal", 41.1, -8.6,
+                null, new byte[] { 2 }));
+        records.add(new ImageRecord("paris", "Rue de Rivoli, Paris, France", 48.9, 2.3,
+                null, new byte[] { 3 }));
+        mDb.addEntries(records, DatabaseHelper.DEFAULT_BATCH_SIZE, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.clearAllImages();
+        mDb.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void search_matchesWordPrefixes() throws Exception {
+        assertEquals(ids("lisbon", "porto"), search("portu"));
+        assertEquals(ids("paris"), search("Riv"));
+    }
+
+    @Test
+    public void search_everyWordHasToMatch() throws Exception {
+        assertEquals(ids("porto"), search("portugal ribeira"));
+        assertEquals(ids(), search("portugal paris"));
+    }
+
+    @Test
+    public void search_returnsPositions() throws Exception {
+        List<ImageMetadata> found = mDb.searchImages("lisbon", Projection.METADATA, 10);
+        assertEquals(1, found.size());
+        assertEquals(38.7, found.get(0).latitude, 0);
+        assertEquals(-9.1, found.get(0).longitude, 0);
+    }
+
+    @Test
+    public void search_ignoresOperatorsAndPunctuation() throws Exception {
+        assertEquals(ids("lisbon", "porto"), search("(\"Portugal\")*"));
+        assertEquals(ids(), search(" *\"- "));
+    }
+
+    @Test
+    public void search_isLimited() throws Exception {
+        assertEquals(1, mDb.searchImages("portugal", Projection.METADATA, 1).size());
+    }
+
+    @Test
+    public void deleteEntry_removesFromIndex() throws Exception {
+        mDb.deleteEntry("porto");
+        assertEquals(ids("lisbon"), search("portugal"));
+    }
+
+    @Test
+    public void addEntry_isIndexed() throws Exception {
+        mDb.addEntry("rome", "Via del Corso, Rome, Italy", 41.9, 12.5, new byte[] { 4 }, null);
+        assertEquals(ids("rome"), search("corso"));
+    }
+
+    @Test
+    public void toMatchExpression_prefixesEveryWord() throws Exception {
+        assertEquals("rue* de* rivoli*", SearchIndex.toMatchExpression("Rue de-Rivoli"));
+        assertEquals("praça*", SearchIndex.toMatchExpression("  Praça, "));
+        assertNull(SearchIndex.toMatchExpression("\"*\""));
+    }
+
+    private List<String> search(String query) {
+        List<String> ids = new ArrayList<String>();
+        for (ImageMetadata image : mDb.searchImages(query, Projection.METADATA, 10)) {
+            ids.add(image.id);
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<String> ids(String... ids) {
+        List<String> sorted = new ArrayList<String>();
+        Collections.addAll(sorted, ids);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
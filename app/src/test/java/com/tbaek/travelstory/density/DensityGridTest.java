@@ -0,0 +1,100 @@
+package com.tbaek.travelstory.density;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DensityGridTest {
+
+    @Test
+    public void add_countsPhotosOfTheTile() throws Exception {
+        // zoom 1 splits the world into four tiles around 0, 0
+        DensityGrid grid = new DensityGrid(1, 0, 1);
+        assertTrue(grid.add(40, 20));
+        assertFalse(grid.add(-40, 20));
+        assertFalse(grid.add(40, -20));
+        assertEquals(1, grid.getCount());
+    }
+
+    @Test
+    public void add_countsPhotosJustBeyondTheEdge() throws Exception {
+        DensityGrid grid = new DensityGrid(1, 0, 1);
+        // a pixel at zoom 1 is 360 / 512 degrees wide
+        assertTrue(grid.add(40, -0.5));
+        assertFalse(grid.add(40, -20));
+    }
+
+    @Test
+    public void bounds_coverTheTileAndItsMargin() throws Exception {
+        DensityGrid grid = new DensityGrid(1, 0, 1);
+        assertEquals(85.05, grid.getNorth(), 0.01);
+        assertTrue(grid.getSouth() < 0);
+        assertTrue(grid.getWest() < 0);
+        assertTrue(grid.getEast() < 180);
+        assertTrue(grid.getEast() > 179.9);
+    }
+
+    @Test
+    public void blur_keepsTheTotalAwayFromTheEdges() throws Exception {
+        DensityGrid grid = new DensityGrid(0, 0, 0);
+        grid.add(0, 0);
+        grid.add(0, 0);
+        float before = sum(grid);
+        grid.blur();
+        assertEquals(before, sum(grid), 0.5f);
+        assertTrue(grid.sample(128, 128) > 0);
+        assertEquals(0, grid.sample(0, 0), 0);
+    }
+
+    @Test
+    public void neighbouringTiles_agreeAtTheirBorder() throws Exception {
+        Random random = new Random(42);
+        DensityGrid left = new DensityGrid(4, 5, 4);
+        DensityGrid right = new DensityGrid(5, 5, 4);
+        for (int i = 0; i < 1000; i++) {
+            double lat = left.getSouth() + random.nextDouble() * (left.getNorth() - left.getSouth());
+            double lng = left.getEast() - random.nextDouble() * 10;
+            left.add(lat, lng);
+            right.add(lat, lng);
+        }
+        left.blur();
+        right.blur();
+        for (int y = 0; y < DensityGrid.TILE_SIZE; y++) {
+            float last = left.sample(DensityGrid.TILE_SIZE - 1, y);
+            float first = right.sample(0, y);
+            assertEquals(last, first, Math.max(last, first) * 0.25f + 1e-3f);
+        }
+    }
+
+    @Test
+    public void tileRange_coversEveryTileThatCountsThePhoto() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            double lat = -80 + random.nextDouble() * 160;
+            double lng = -180 + random.nextDouble() * 360;
+            int zoom = random.nextInt(8);
+            int[] range = DensityGrid.getTileRange(lat, lng, zoom);
+            int tiles = 1 << zoom;
+            for (int x = 0; x < tiles; x++) {
+                for (int y = 0; y < tiles; y++) {
+                    boolean inRange = x >= range[0] && x <= range[1]
+                            && y >= range[2] && y <= range[3];
+                    assertEquals(inRange, new DensityGrid(x, y, zoom).add(lat, lng));
+                }
+            }
+        }
+    }
+
+    private static float sum(DensityGrid grid) {
+        // the samples of a cell center equal the cell
+        float sum = 0;
+        for (int y = DensityGrid.CELL_SIZE / 2; y < DensityGrid.TILE_SIZE; y += DensityGrid.CELL_SIZE) {
+            for (int x = DensityGrid.CELL_SIZE / 2; x < DensityGrid.TILE_SIZE; x += DensityGrid.CELL_SIZE) {
+                sum += grid.sample(x, y);
+            }
+        }
+        return sum;
+    }
+}
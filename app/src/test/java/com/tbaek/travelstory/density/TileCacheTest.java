@@ -0,0 +1,63 @@
+package com.tbaek.travelstory.density;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TileCacheTest {
+    private File mDirectory;
+    private TileCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("tiles", "");
+        mDirectory.delete();
+        mCache = new TileCache(mDirectory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(mDirectory);
+    }
+
+    @Test
+    public void read_missingTile_isNull() throws Exception {
+        assertNull(mCache.read(3, 1, 2));
+    }
+
+    @Test
+    public void write_thenRead_returnsTheBytes() throws Exception {
+        mCache.write(3, 1, 2, new byte[] { 1, 2, 3 });
+        assertArrayEquals(new byte[] { 1, 2, 3 }, mCache.read(3, 1, 2));
+        assertNull(mCache.read(3, 2, 1));
+    }
+
+    @Test
+    public void emptyTile_isKept() throws Exception {
+        mCache.write(0, 0, 0, new byte[0]);
+        assertEquals(0, mCache.read(0, 0, 0).length);
+    }
+
+    @Test
+    public void delete_dropsOnlyThatTile() throws Exception {
+        mCache.write(3, 1, 2, new byte[] { 1 });
+        mCache.write(3, 1, 3, new byte[] { 2 });
+        assertTrue(mCache.delete(3, 1, 2));
+        assertNull(mCache.read(3, 1, 2));
+        assertArrayEquals(new byte[] { 2 }, mCache.read(3, 1, 3));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,48 @@
+package com.tbaek.travelstory.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void empty_reportsZero() throws Exception {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void summary_matchesRecordedValues() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void percentiles_areWithinFactorOfTwo() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 < 1000);
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void hugeValues_doNotOverflow() throws Exception {
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+        assertEquals(0, histogram.getPercentile(50));
+    }
+}
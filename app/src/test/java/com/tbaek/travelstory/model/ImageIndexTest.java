@@ -0,0 +1,179 @@
+package com.tbaek.travelstory.model;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ImageIndexTest {
+    private static final String ID = "0f8fad5b-d9cb-469f-a165-70867728950e";
+
+    @Test
+    public void put_thenGet_returnsSameImage() throws Exception {
+        ImageIndex index = new ImageIndex();
+        Image image = index.put(ID, "Seoul", 37.5665, 126.978);
+
+        assertEquals(1, index.size());
+        assertEquals(ID, image.getId());
+        assertEquals("Seoul", image.getPlace());
+        assertEquals(37.5665, image.getPosition().latitude, 1e-7);
+        assertEquals(126.978, image.getPosition().longitude, 1e-7);
+        assertEquals(image, index.get(ID));
+        assertEquals(image.hashCode(), index.get(ID).hashCode());
+    }
+
+    @Test
+    public void put_existingId_movesImage() throws Exception {
+        ImageIndex index = new ImageIndex();
+        Image first = index.put(ID, "Seoul", 37.5, 127);
+        Image second = index.put(ID, null, -33.9, 151.2);
+
+        assertEquals(1, index.size());
+        assertEquals(first, second);
+        assertNull(first.getPlace());
+        assertEquals(new LatLng(-33.9, 151.2), first.getPosition());
+    }
+
+    @Test
+    public void nonUuidIds_areKeptAsStrings() throws Exception {
+        ImageIndex index = new ImageIndex();
+        Image upper = index.put(ID.toUpperCase(), "a", 0, 0);
+        Image plain = index.put("b", "b", 1, 1);
+        Image uuid = index.put(ID, "c", 2, 2);
+
+        assertEquals(3, index.size());
+        assertEquals(ID.toUpperCase(), upper.getId());
+        assertEquals("b", plain.getId());
+        assertFalse(upper.equals(uuid));
+        assertTrue(index.remove("b"));
+        assertFalse(index.contains("b"));
+        assertTrue(index.contains(ID.toUpperCase()));
+    }
+
+    @Test
+    public void remove_reusesSlot() throws Exception {
+        ImageIndex index = new ImageIndex();
+        Image image = index.put(ID, "a", 0, 0);
+        assertTrue(index.remove(image));
+        assertFalse(index.remove(image));
+        assertNull(index.get(ID));
+        assertEquals(0, index.size());
+
+        String other = UUID.randomUUID().toString();
+        Image reused = index.put(other, "b", 1, 1);
+        assertEquals(1, index.size());
+        assertEquals(other, reused.getId());
+    }
+
+    @Test
+    public void reusedSlot_isNotEqualToTheRemovedImage() throws Exception {
+        ImageIndex index = new ImageIndex();
+        Image evicted = index.put(ID, "a", 0, 0);
+        assertTrue(index.remove(evicted));
+
+        Image reused = index.put(UUID.randomUUID().toString(), "b", 1, 1);
+        assertFalse(evicted.equals(reused));
+        assertFalse(reused.equals(evicted));
+        // the stale view does not take the new image out of the index
+        assertFalse(index.remove(evicted));
+        assertEquals(1, index.size());
+        assertEquals(reused, index.get(reused.getId()));
+    }
+
+    @Test
+    public void clear_dropsThePlaceNames() throws Exception {
+        ImageIndex index = new ImageIndex();
+        Image stale = index.put(ID, "Seoul", 37.5, 127);
+        index.put(UUID.randomUUID().toString(), "Busan", 35.2, 129.1);
+        assertEquals(2, index.getPlaceCount());
+
+        index.clear();
+        assertEquals(0, index.getPlaceCount());
+        assertNull(stale.getPlace());
+        for (int i = 0; i < 10; i++) {
+            index.clear();
+            index.put(UUID.randomUUID().toString(), "Place " + i, 0, 0);
+        }
+        assertEquals(1, index.getPlaceCount());
+    }
+
+    @Test
+    public void put_manyImages_keepsOneCopyOfEachPlaceName() throws Exception {
+        int places = 50;
+        ImageIndex index = new ImageIndex();
+        Random random = new Random(11);
+        List<Image> images = new ArrayList<Image>();
+        for (int i = 0; i < 10000; i++) {
+            // every row of a cursor comes with its own copy of the place name
+            String place = new String("Place number " + random.nextInt(places));
+            images.add(index.put(new UUID(random.nextLong(), random.nextLong()).toString(),
+                    place, random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180));
+        }
+
+        assertEquals(10000, index.size());
+        assertEquals(places, index.getPlaceCount());
+        Map<String, String> canonical = new HashMap<String, String>();
+        for (Image image : images) {
+            String place = image.getPlace();
+            if (canonical.containsKey(place)) {
+                assertSame(canonical.get(place), place);
+            } else {
+                canonical.put(place, place);
+            }
+        }
+    }
+
+    @Test
+    public void findOutside_handlesAntimeridian() throws Exception {
+        ImageIndex index = new ImageIndex();
+        index.put("fiji", "Fiji", -17.7, 178.0);
+        index.put("samoa", "Samoa", -13.8, -172.1);
+        index.put("perth", "Perth", -31.9, 115.9);
+
+        List<String> outside = new ArrayList<String>();
+        for (Image image : index.findOutside(-40, 170, 0, -170)) {
+            outside.add(image.getId());
+        }
+        assertEquals(1, outside.size());
+        assertEquals("perth", outside.get(0));
+    }
+
+    @Test
+    public void randomOperations_matchHashMap() throws Exception {
+        Random random = new Random(7);
+        ImageIndex index = new ImageIndex();
+        Map<String, Double> expected = new HashMap<String, Double>();
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            ids.add(new UUID(random.nextLong(), random.nextLong()).toString());
+        }
+        for (int i = 0; i < 20000; i++) {
+            String id = ids.get(random.nextInt(ids.size()));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(id) != null, index.remove(id));
+            } else {
+                double latitude = random.nextDouble() * 170 - 85;
+                index.put(id, "p" + random.nextInt(10), latitude, 0);
+                expected.put(id, latitude);
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (String id : ids) {
+            Image image = index.get(id);
+            if (expected.containsKey(id)) {
+                assertEquals(id, image.getId());
+                assertEquals(expected.get(id), image.getPosition().latitude, 1e-7);
+            } else {
+                assertNull(image);
+            }
+        }
+    }
+}
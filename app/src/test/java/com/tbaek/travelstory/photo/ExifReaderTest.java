@@ -0,0 +1,27 @@
+package com.tbaek.travelstory.photo;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+
+import static org.junit.Assert.*;
+
+public class ExifReaderTest {
+
+    @Test
+    public void parseDateTime_readsLocalTime() throws Exception {
+        Calendar expected = Calendar.getInstance();
+        expected.clear();
+        expected.set(2017, Calendar.MAY, 14, 9, 30, 5);
+
+        assertEquals(Long.valueOf(expected.getTimeInMillis()),
+                ExifReader.parseDateTime("2017:05:14 09:30:05"));
+    }
+
+    @Test
+    public void parseDateTime_rejectsPlaceholders() throws Exception {
+        assertNull(ExifReader.parseDateTime(null));
+        assertNull(ExifReader.parseDateTime("0000:00:00 00:00:00"));
+        assertNull(ExifReader.parseDateTime("                   "));
+    }
+}
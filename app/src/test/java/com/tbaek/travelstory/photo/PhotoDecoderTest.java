@@ -0,0 +1,34 @@
+package com.tbaek.travelstory.photo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PhotoDecoderTest {
+    private static final long UNLIMITED = Long.MAX_VALUE;
+
+    @Test
+    public void smallPhoto_isNotSampled() throws Exception {
+        assertEquals(1, PhotoDecoder.computeSampleSize(1024, 768, 2048, UNLIMITED));
+        assertEquals(1, PhotoDecoder.computeSampleSize(4000, 3000, 2048, UNLIMITED));
+    }
+
+    @Test
+    public void largePhoto_isSampledBelowTwiceTheTarget() throws Exception {
+        // 48 MP sensor
+        assertEquals(2, PhotoDecoder.computeSampleSize(8000, 6000, 2048, UNLIMITED));
+        assertEquals(4, PhotoDecoder.computeSampleSize(8192, 6144, 2048, UNLIMITED));
+    }
+
+    @Test
+    public void panorama_isSampledByItsLongestSide() throws Exception {
+        assertEquals(8, PhotoDecoder.computeSampleSize(30000, 4000, 2048, UNLIMITED));
+    }
+
+    @Test
+    public void memoryCeiling_forcesLargerSampleSize() throws Exception {
+        int sampleSize = PhotoDecoder.computeSampleSize(4000, 3000, 2048, 8 * 1024 * 1024);
+        assertEquals(4, sampleSize);
+        assertTrue((4000 / sampleSize) * (3000 / sampleSize) * 4 <= 8 * 1024 * 1024);
+    }
+}
@@ -0,0 +1,110 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.benchmark;
+
+import com.tbaek.travelstory.clustering.GridIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cluster index under the positions of a skewed photo library: building it, the viewport
+ * lookups of a camera change at a wide and a close zoom, and moving or removing a single photo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClusterBenchmark {
+    // a phone screen is about this many degrees wide at zoom 10
+    private static final double VIEWPORT_AT_ZOOM_10 = 0.7;
+
+    @Param({ "10000", "100000" })
+    public int photos;
+
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private GridIndex<Integer> mIndex;
+    private double mCenterLatitude;
+    private double mCenterLongitude;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticDataset dataset = new SyntheticDataset(photos, 0);
+        List<SyntheticDataset.Photo> rows = dataset.next(photos);
+        mLatitudes = new double[photos];
+        mLongitudes = new double[photos];
+        for (int i = 0; i < photos; i++) {
+            mLatitudes[i] = rows.get(i).latitude;
+            mLongitudes[i] = rows.get(i).longitude;
+        }
+        mIndex = build();
+        mCenterLatitude = dataset.getBusiestLatitude();
+        mCenterLongitude = dataset.getBusiestLongitude();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public GridIndex<Integer> build() {
+        GridIndex<Integer> index = new GridIndex<Integer>();
+        for (int i = 0; i < mLatitudes.length; i++) {
+            index.add(i, mLatitudes[i], mLongitudes[i]);
+        }
+        return index;
+    }
+
+    @Benchmark
+    public int clusterWorld() {
+        return mIndex.getCells(3).size();
+    }
+
+    @Benchmark
+    public int clusterViewport() {
+        double half = VIEWPORT_AT_ZOOM_10 / 2;
+        return mIndex.getCells(10, mCenterLatitude - half, mCenterLongitude - half,
+                mCenterLatitude + half, mCenterLongitude + half).size();
+    }
+
+    // what an import or a deletion costs the index, the photo is put back where it was
+    @Benchmark
+    public int movePhoto() {
+        int i = mNext;
+        mNext = (mNext + 1) % mLatitudes.length;
+        mIndex.add(i, mLatitudes[i] + 0.001, mLongitudes[i]);
+        mIndex.add(i, mLatitudes[i], mLongitudes[i]);
+        return mIndex.size();
+    }
+
+    // a deletion, the photo is imported again right after
+    @Benchmark
+    public int removePhoto() {
+        int i = mNext;
+        mNext = (mNext + 1) % mLatitudes.length;
+        mIndex.remove(i);
+        mIndex.add(i, mLatitudes[i], mLongitudes[i]);
+        return mIndex.size();
+    }
+}
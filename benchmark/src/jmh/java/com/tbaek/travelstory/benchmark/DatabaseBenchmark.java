@@ -0,0 +1,177 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The statements of DatabaseHelper against SQLite on the JVM, on a table that is prefilled
+ * with a skewed photo library. The absolute numbers differ from a phone's flash storage, the
+ * trend between runs is what to watch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DatabaseBenchmark {
+    // rows of one import transaction, DatabaseHelper.DEFAULT_BATCH_SIZE
+    private static final int BATCH_SIZE = 500;
+    // rows of one page, DatabaseHelper.DEFAULT_PAGE_SIZE
+    private static final int PAGE_SIZE = 500;
+    private static final double VIEWPORT = 0.7;
+    // matches of one search, DatabaseHelper.DEFAULT_SEARCH_LIMIT
+    private static final int SEARCH_LIMIT = 1000;
+
+    @Param({ "10000", "100000" })
+    public int photos;
+
+    private File mFile;
+    private Connection mConnection;
+    private SyntheticDataset mDataset;
+    private List<SyntheticDataset.Photo> mRows;
+    private PreparedStatement mInBounds;
+    private PreparedStatement mPage;
+    private PreparedStatement mThumbnail;
+    private PreparedStatement mSearch;
+    private PreparedStatement mDelete;
+    private PreparedStatement mInsert;
+    private int mNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("travel_story_benchmark", ".db");
+        mFile.delete();
+        mConnection = Schema.create(mFile.getPath());
+        mDataset = new SyntheticDataset(photos);
+        mRows = mDataset.next(photos);
+        mDataset.insert(mConnection, mRows, BATCH_SIZE);
+        mInBounds = mConnection.prepareStatement(Schema.SELECT_IN_BOUNDS);
+        mPage = mConnection.prepareStatement(Schema.SELECT_PAGE);
+        mThumbnail = mConnection.prepareStatement(Schema.SELECT_THUMBNAIL);
+        mSearch = mConnection.prepareStatement(Schema.SEARCH);
+        mDelete = mConnection.prepareStatement(Schema.DELETE);
+        mInsert = mConnection.prepareStatement(Schema.INSERT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mConnection.close();
+        for (String suffix : new String[] { "", "-wal", "-shm" }) {
+            new File(mFile.getPath() + suffix).delete();
+        }
+    }
+
+    // an import of one batch; the rows are new every time, so the table keeps growing
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void insertBatch() throws SQLException {
+        mDataset.insert(mConnection, mDataset.next(BATCH_SIZE), BATCH_SIZE);
+    }
+
+    // the loader's query for the busiest viewport, it reads the thumbnails separately
+    @Benchmark
+    public int queryViewport() throws SQLException {
+        double half = VIEWPORT / 2;
+        mInBounds.setDouble(1, mDataset.getBusiestLatitude() - half);
+        mInBounds.setDouble(2, mDataset.getBusiestLatitude() + half);
+        mInBounds.setDouble(3, mDataset.getBusiestLongitude() - half);
+        mInBounds.setDouble(4, mDataset.getBusiestLongitude() + half);
+        ResultSet result = mInBounds.executeQuery();
+        int rows = 0;
+        try {
+            while (result.next()) {
+                result.getString(1);
+                rows++;
+            }
+        } finally {
+            result.close();
+        }
+        return rows;
+    }
+
+    // a metadata page somewhere in the middle of the table
+    @Benchmark
+    public int queryPage() throws SQLException {
+        mPage.setString(1, nextRow().id);
+        mPage.setInt(2, PAGE_SIZE);
+        return drain(mPage.executeQuery());
+    }
+
+    // a search as typed, a word that every place shares and a short prefix of the next one
+    @Benchmark
+    public int searchPlaces() throws SQLException {
+        mSearch.setString(1, "place* 1*");
+        mSearch.setInt(2, SEARCH_LIMIT);
+        return drain(mSearch.executeQuery());
+    }
+
+    // a cache miss of the BitmapCache
+    @Benchmark
+    public int queryThumbnail() throws SQLException {
+        mThumbnail.setString(1, nextRow().id);
+        ResultSet result = mThumbnail.executeQuery();
+        try {
+            return result.next() ? result.getBytes(1).length : 0;
+        } finally {
+            result.close();
+        }
+    }
+
+    // deleting a photo, it is inserted again so the table keeps its size
+    @Benchmark
+    public int deleteAndInsert() throws SQLException {
+        SyntheticDataset.Photo row = nextRow();
+        mDelete.setString(1, row.id);
+        int deleted = mDelete.executeUpdate();
+        SyntheticDataset.bind(mInsert, row);
+        return deleted + mInsert.executeUpdate();
+    }
+
+    private SyntheticDataset.Photo nextRow() {
+        SyntheticDataset.Photo row = mRows.get(mNext);
+        mNext = (mNext + 1) % mRows.size();
+        return row;
+    }
+
+    private static int drain(ResultSet result) throws SQLException {
+        int rows = 0;
+        try {
+            while (result.next()) {
+                result.getString(1);
+                rows++;
+            }
+        } finally {
+            result.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,117 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The tables of DatabaseHelper at schema version 8 and the statements it runs, for SQLite on the
+ * JVM. DatabaseHelper is an SQLiteOpenHelper and can not be loaded here, so the SQL is kept in
+ * step with it and the migrations by hand.
+ */
+public final class Schema {
+    public static final int VERSION = 8;
+
+    public static final String TABLE = "table_images";
+    public static final String BLOB_TABLE = "blobs";
+    public static final String SEARCH_TABLE = "images_search";
+
+    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE + "(" +
+            "id TEXT PRIMARY KEY NOT NULL," +
+            "place_name TEXT," +
+            "latitude DOUBLE," +
+            "longitude DOUBLE," +
+            "image_file TEXT," +
+            "thumbnail_data BLOB," +
+            "date_taken INTEGER," +
+            "codec TEXT NOT NULL DEFAULT 'png'," +
+            "content_hash TEXT)";
+    public static final String CREATE_BLOB_TABLE = "CREATE TABLE " + BLOB_TABLE + "(" +
+            "hash TEXT PRIMARY KEY NOT NULL," +
+            "file TEXT NOT NULL," +
+            "ref_count INTEGER NOT NULL)";
+    public static final String[] CREATE_INDICES = {
+            "CREATE INDEX index_images_location ON " + TABLE + "(latitude, longitude)",
+            "CREATE INDEX index_images_date_taken ON " + TABLE + "(date_taken)",
+            "CREATE INDEX index_images_content_hash ON " + TABLE + "(content_hash)" };
+    // SearchIndex, the full-text index and the triggers that keep it up to date
+    public static final String[] CREATE_SEARCH = {
+            "CREATE VIRTUAL TABLE " + SEARCH_TABLE + " USING fts4(place_name, content=\"" +
+                    TABLE + "\", prefix=\"1,2\")",
+            "CREATE TRIGGER " + SEARCH_TABLE + "_after_insert AFTER INSERT ON " + TABLE +
+                    " BEGIN INSERT INTO " + SEARCH_TABLE + "(docid, place_name) " +
+                    "VALUES (new.rowid, new.place_name); END",
+            "CREATE TRIGGER " + SEARCH_TABLE + "_before_update BEFORE UPDATE OF place_name ON " +
+                    TABLE + " BEGIN DELETE FROM " + SEARCH_TABLE + " WHERE docid = old.rowid; END",
+            "CREATE TRIGGER " + SEARCH_TABLE + "_after_update AFTER UPDATE OF place_name ON " +
+                    TABLE + " BEGIN INSERT INTO " + SEARCH_TABLE + "(docid, place_name) " +
+                    "VALUES (new.rowid, new.place_name); END",
+            "CREATE TRIGGER " + SEARCH_TABLE + "_before_delete BEFORE DELETE ON " + TABLE +
+                    " BEGIN DELETE FROM " + SEARCH_TABLE + " WHERE docid = old.rowid; END" };
+
+    // DatabaseHelper.addEntries()
+    public static final String INSERT = "INSERT INTO " + TABLE + " (id, place_name, latitude, " +
+            "longitude, image_file, thumbnail_data, codec, date_taken, content_hash) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // BlobTable.getFile() and retain(), run for every inserted row
+    public static final String SELECT_BLOB = "SELECT file FROM " + BLOB_TABLE + " WHERE hash=?";
+    public static final String RETAIN_BLOB = "UPDATE " + BLOB_TABLE +
+            " SET ref_count = ref_count + 1 WHERE hash=?";
+    public static final String INSERT_BLOB = "INSERT INTO " + BLOB_TABLE +
+            " (hash, file, ref_count) VALUES (?, ?, 1)";
+    // DatabaseHelper.getImagesInBounds() with the loader's projection
+    public static final String SELECT_IN_BOUNDS = "SELECT id, place_name, latitude, longitude " +
+            "FROM " + TABLE + " WHERE latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ?";
+    // DatabaseHelper.getImagesPage() by id with Projection.METADATA
+    public static final String SELECT_PAGE = "SELECT id AS page_key, id, place_name, latitude, " +
+            "longitude, date_taken, codec FROM " + TABLE + " WHERE id > ? ORDER BY id LIMIT ?";
+    // DatabaseHelper.searchImages() with Projection.METADATA
+    public static final String SEARCH = "SELECT id, place_name, latitude, longitude, " +
+            "date_taken, codec FROM " + TABLE + " WHERE rowid IN (SELECT docid FROM " +
+            SEARCH_TABLE + " WHERE " + SEARCH_TABLE + " MATCH ? LIMIT ?)";
+    // DatabaseHelper.getThumbnail()
+    public static final String SELECT_THUMBNAIL = "SELECT thumbnail_data FROM " + TABLE +
+            " WHERE id=?";
+    // DatabaseHelper.deleteEntry()
+    public static final String DELETE = "DELETE FROM " + TABLE + " WHERE id=?";
+
+    private Schema() {
+    }
+
+    // a database at the current version, with WAL like the app turns on
+    public static Connection create(String path) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute(CREATE_TABLE);
+            statement.execute(CREATE_BLOB_TABLE);
+            for (String index : CREATE_INDICES) {
+                statement.execute(index);
+            }
+            for (String search : CREATE_SEARCH) {
+                statement.execute(search);
+            }
+            statement.execute("PRAGMA user_version=" + VERSION);
+        } finally {
+            statement.close();
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,252 @@
+/* Copyright 2017 Tim Baek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tbaek.travelstory.benchmark;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Geotagged photo rows that are spread over the world like a real library: most photos are
+ * taken in a few places, a long tail of places has a handful each, and some are scattered
+ * anywhere. The same seed always produces the same rows.
+ *
+ * Places get Zipf-distributed shares of the photos. Within a place the photos follow a normal
+ * distribution whose spread ranges from a city block to a region, and a share of them sit at
+ * the exact same position, like a burst of shots from one spot.
+ */
+public class SyntheticDataset {
+    private static final int PLACES = 200;
+    // exponent of the Zipf distribution over the places
+    private static final double PLACE_SKEW = 1.1;
+    // share of photos anywhere on land-ish latitudes, not near any place
+    private static final double SCATTERED = 0.05;
+    // share of photos that repeat the position of the previous photo of the place
+    private static final double BURST = 0.2;
+    private static final double MIN_SPREAD = 0.005;
+    private static final double MAX_SPREAD = 0.5;
+    private static final long START_DATE = 1262304000000L;  // 2010-01-01
+    private static final long DATE_RANGE = 8L * 365 * 24 * 60 * 60 * 1000;
+    public static final int THUMBNAIL_BYTES = 6 * 1024;
+
+    private final Random mRandom;
+    private final double[] mLatitudes = new double[PLACES];
+    private final double[] mLongitudes = new double[PLACES];
+    private final double[] mSpreads = new double[PLACES];
+    private final double[] mLastLatitudes = new double[PLACES];
+    private final double[] mLastLongitudes = new double[PLACES];
+    // cumulative Zipf weights, searched with a random number in [0, 1)
+    private final double[] mCumulative = new double[PLACES];
+    private final int mThumbnailBytes;
+
+    public SyntheticDataset(long seed) {
+        this(seed, THUMBNAIL_BYTES);
+    }
+
+    public SyntheticDataset(long seed, int thumbnailBytes) {
+        mRandom = new Random(seed);
+        mThumbnailBytes = thumbnailBytes;
+        double total = 0;
+        for (int i = 0; i < PLACES; i++) {
+            mLatitudes[i] = randomLatitude();
+            mLongitudes[i] = mRandom.nextDouble() * 360 - 180;
+            // log-uniform between a block and a region
+            mSpreads[i] = MIN_SPREAD * Math.pow(MAX_SPREAD / MIN_SPREAD, mRandom.nextDouble());
+            mLastLatitudes[i] = mLatitudes[i];
+            mLastLongitudes[i] = mLongitudes[i];
+            total += 1 / Math.pow(i + 1, PLACE_SKEW);
+            mCumulative[i] = total;
+        }
+        for (int i = 0; i < PLACES; i++) {
+            mCumulative[i] /= total;
+        }
+    }
+
+    public Photo next() {
+        String id = new UUID(mRandom.nextLong(), mRandom.nextLong()).toString();
+        long date = START_DATE + (long) (mRandom.nextDouble() * DATE_RANGE);
+        byte[] thumbnail = new byte[mThumbnailBytes];
+        mRandom.nextBytes(thumbnail);
+        // every photo is distinct, a SHA-256 is as random as this
+        String contentHash = Long.toHexString(mRandom.nextLong()) +
+                Long.toHexString(mRandom.nextLong()) + Long.toHexString(mRandom.nextLong());
+        if (mRandom.nextDouble() < SCATTERED) {
+            return new Photo(id, null, randomLatitude(), mRandom.nextDouble() * 360 - 180,
+                    date, thumbnail, contentHash);
+        }
+        int place = pickPlace();
+        if (mRandom.nextDouble() >= BURST) {
+            mLastLatitudes[place] = clampLatitude(
+                    mLatitudes[place] + mRandom.nextGaussian() * mSpreads[place]);
+            mLastLongitudes[place] = wrapLongitude(
+                    mLongitudes[place] + mRandom.nextGaussian() * mSpreads[place]);
+        }
+        return new Photo(id, "Place " + place, mLastLatitudes[place], mLastLongitudes[place],
+                date, thumbnail, contentHash);
+    }
+
+    public List<Photo> next(int count) {
+        List<Photo> photos = new ArrayList<Photo>(count);
+        for (int i = 0; i < count; i++) {
+            photos.add(next());
+        }
+        return photos;
+    }
+
+    // the center of the most photographed place, where viewport queries are the heaviest
+    public double getBusiestLatitude() {
+        return mLatitudes[0];
+    }
+
+    public double getBusiestLongitude() {
+        return mLongitudes[0];
+    }
+
+    // inserts in transactions of batchSize rows, like DatabaseHelper.addEntries()
+    public void insert(Connection connection, List<Photo> photos, int batchSize)
+            throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        PreparedStatement insert = connection.prepareStatement(Schema.INSERT);
+        PreparedStatement selectBlob = connection.prepareStatement(Schema.SELECT_BLOB);
+        PreparedStatement retainBlob = connection.prepareStatement(Schema.RETAIN_BLOB);
+        PreparedStatement insertBlob = connection.prepareStatement(Schema.INSERT_BLOB);
+        try {
+            for (int i = 0; i < photos.size(); i++) {
+                Photo photo = photos.get(i);
+                selectBlob.setString(1, photo.contentHash);
+                ResultSet stored = selectBlob.executeQuery();
+                boolean exists = stored.next();
+                stored.close();
+                bind(insert, photo);
+                insert.executeUpdate();
+                PreparedStatement blob = exists ? retainBlob : insertBlob;
+                blob.setString(1, photo.contentHash);
+                if (!exists) {
+                    blob.setString(2, photo.id);
+                }
+                blob.executeUpdate();
+                if ((i + 1) % batchSize == 0) {
+                    connection.commit();
+                }
+            }
+            connection.commit();
+        } finally {
+            insert.close();
+            selectBlob.close();
+            retainBlob.close();
+            insertBlob.close();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    public static void bind(PreparedStatement insert, Photo photo) throws SQLException {
+        insert.setString(1, photo.id);
+        insert.setString(2, photo.place);
+        insert.setDouble(3, photo.latitude);
+        insert.setDouble(4, photo.longitude);
+        insert.setString(5, null);
+        insert.setBytes(6, photo.thumbnail);
+        insert.setString(7, "jpeg");
+        insert.setLong(8, photo.dateTaken);
+        insert.setString(9, photo.contentHash);
+    }
+
+    private int pickPlace() {
+        double value = mRandom.nextDouble();
+        int low = 0;
+        int high = PLACES - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mCumulative[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // mostly where people live, the poles stay empty
+    private double randomLatitude() {
+        return mRandom.nextDouble() * 120 - 55;
+    }
+
+    private static double clampLatitude(double latitude) {
+        return Math.max(-85, Math.min(85, latitude));
+    }
+
+    private static double wrapLongitude(double longitude) {
+        if (longitude < -180) return longitude + 360;
+        if (longitude >= 180) return longitude - 360;
+        return longitude;
+    }
+
+    public static class Photo {
+        public final String id;
+        public final String place;
+        public final double latitude;
+        public final double longitude;
+        public final long dateTaken;
+        public final byte[] thumbnail;
+        public final String contentHash;
+
+        Photo(String id, String place, double latitude, double longitude, long dateTaken,
+              byte[] thumbnail, String contentHash) {
+            this.id = id;
+            this.place = place;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.dateTaken = dateTaken;
+            this.thumbnail = thumbnail;
+            this.contentHash = contentHash;
+        }
+    }
+
+    /**
+     * Writes a database with the given number of photos, to be pushed to a device with
+     * {@code adb push <file> /data/data/com.tbaek.travelstory/databases/}. The thumbnails are
+     * noise, so the markers show up as empty frames.
+     */
+    public static void main(String[] args) throws Exception {
+        int count = Integer.parseInt(args[0]);
+        File file = new File(args[1]);
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Could not create " + directory);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IllegalStateException("Could not replace " + file);
+        }
+        Connection connection = Schema.create(file.getPath());
+        try {
+            SyntheticDataset dataset = new SyntheticDataset(count);
+            int batch = 10000;
+            for (int done = 0; done < count; done += batch) {
+                dataset.insert(connection, dataset.next(Math.min(batch, count - done)), batch);
+            }
+        } finally {
+            connection.close();
+        }
+        System.out.println("Wrote " + count + " photos to " + file);
+    }
+}